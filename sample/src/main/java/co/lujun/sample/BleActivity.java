@@ -6,12 +6,8 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -30,13 +26,17 @@ import com.diing.bluetooth.base.State;
 import com.diing.bluetooth.controller.BluetoothLEController;
 import com.diing.bluetooth.interfaces.BluetoothLEListener;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
-import diing.com.core.command.bind.BindKit;
-import diing.com.core.command.bind.UnBindKit;
+import diing.com.core.command.info.GetBattertInfoKit;
 import diing.com.core.command.info.GetDeviceInfoKit;
+import diing.com.core.command.info.GetDeviceTimeKit;
+import diing.com.core.command.setting.SetTimeKit;
 import diing.com.core.command.sync.SyncRequestKit;
 import diing.com.core.command.sync.SyncSportRequestKit;
 import diing.com.core.controller.CommandController;
@@ -44,7 +44,6 @@ import diing.com.core.enumeration.CommandKit;
 import diing.com.core.enumeration.SyncMode;
 import diing.com.core.enumeration.SyncState;
 import diing.com.core.enumeration.SyncType;
-import diing.com.core.interfaces.OnBindUnBindHandler;
 import diing.com.core.interfaces.OnGettingHandler;
 import diing.com.core.interfaces.OnSettingHandler;
 import diing.com.core.interfaces.OnSyncHandler;
@@ -73,9 +72,30 @@ public class BleActivity extends AppCompatActivity {
     private static final int REQUEST_ENABLE_BT = 1;
 
     private BluetoothLEController mBLEController;
-
-    private List<String> mList;
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+    private ConnectionPriorityGovernor mPriorityGovernor;
+    private WindowedWriter mBulkWriter;
+    private DeviceProfileCache mProfileCache;
+    private GattEventRouter mEventRouter;
+    private WriteScheduler mWriteScheduler;
+    private RadioAccounting mRadioAccounting;
+    private GattEventAdapter mCommandSubscriber, mSyncSubscriber;
+    private GattTrafficRecorder mTrafficRecorder;
+    private ScanScheduler mScanScheduler;
+    private ClockSynchronizer mClockSynchronizer;
+    private NotificationQueue mInboundQueue;
+    private NotificationQueue.Lane mCommandLane;
+    private NotificationQueue.Lane mSyncLane;
+    private SyncPacketValidator mSyncValidator;
+    private HistorySync mHistorySync;
+    private CommandKit mCurrentSync;
+    private boolean mSyncStopSent;
+    private boolean mRealTimeActive;
+
+    private List<KnownDevice> mList;
     private BaseAdapter mFoundAdapter;
+    private KnownDeviceRegistry mKnownDevices;
+    private volatile String mConnectingMac;
 
     private ListView lvDevices;
     private Button btnScan, btnDisconnect, btnReconnect, btnSend, btnBind, btnUnBind;
@@ -84,6 +104,18 @@ public class BleActivity extends AppCompatActivity {
 
     private static final String TAG = "LMBluetoothSdk";
 
+    // Set to true to capture GATT traffic into files/traces for GattTrafficReplayer
+    private static final boolean RECORD_GATT_TRAFFIC = false;
+
+    // Real-time data counts as one session until it pauses this long
+    private static final long REALTIME_IDLE_MILLIS = 5000;
+
+    // Sync packets are command:1 index:1 record*, the index wraps; set SYNC_CRC for firmware
+    // that adds a CRC-16 trailer
+    private static final int SYNC_SEQUENCE_OFFSET = 1;
+    private static final int SYNC_SEQUENCE_BYTES = 1;
+    private static final boolean SYNC_CRC = false;
+
     // You can change this options if you want to search by service and specify read/write
     // characteristics to be added to the controller
     public static final String REMOTE_NAME = "BODHI";
@@ -94,6 +126,9 @@ public class BleActivity extends AppCompatActivity {
     public static final String SYNC_READ_CHARACTERISTIC_ID = "00000b12-0000-1000-8000-00805f9b34fb";
     public static final String SYNC_WRITE_CHARACTERISTIC_ID = "00000b11-0000-1000-8000-00805f9b34fb";
     public static final String BIND_CONFIG_UUID = "00002902-0000-1000-8000-00805f9b34fb";
+    // The SDK is configured with the ids above, GATT callbacks carry the plain uuids
+    public static final String READ_CHARACTERISTIC_UUID = "00000b17-0000-1000-8000-00805f9b34fb";
+    public static final String WRITE_CHARACTERISTIC_UUID = "00000b16-0000-1000-8000-00805f9b34fb";
 
     private BluetoothLEListener mBluetoothLEListener = new BluetoothLEListener() {
 
@@ -119,6 +154,7 @@ public class BleActivity extends AppCompatActivity {
                     }
                 }
             });
+            mBulkWriter.setCharacteristics(characteristics);
         }
 
         @Override
@@ -149,32 +185,33 @@ public class BleActivity extends AppCompatActivity {
 
         @Override
         public void onWriteData(final BluetoothGattCharacteristic characteristic) {
-            runOnUiThread(new Runnable() {
+            final byte[] value = characteristic.getValue();
+            BluetoothEventLoop.shared().post(new Runnable() {
                 @Override
                 public void run() {
-                    String result = Utils.logCommand("OnWriteData", characteristic.getValue());
-                    tvContent.append("Me" + ": " + result + "\n");
+                    mBulkWriter.onFrameWritten(characteristic.getUuid().toString(), value);
                     try {
-                        CommandController.shared().getWriteResult(characteristic.getValue());
+                        CommandController.shared().getWriteResult(value);
                     } catch (DIException e) {
-                        Toast.makeText(BleActivity.this, e.getMessage(), Toast.LENGTH_LONG).show();
+                        showToast(e.getMessage());
                     }
                 }
             });
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    String result = Utils.logCommand("OnWriteData", value);
+                    tvContent.append("Me" + ": " + result + "\n");
+                }
+            });
         }
 
         @Override
         public void onDataChanged(final BluetoothGattCharacteristic characteristic) {
-
+            final byte[] response = characteristic.getValue();
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    byte[] response = characteristic.getValue();
-                    try {
-                        CommandController.shared().getResult(response);
-                    } catch (DIException e) {
-                        Toast.makeText(BleActivity.this, e.getMessage(), Toast.LENGTH_LONG).show();
-                    }
                     String result = Utils.logCommand("OnDataChanged", response);
                     tvContent.append(result);
                 }
@@ -202,30 +239,71 @@ public class BleActivity extends AppCompatActivity {
 
         @Override
         public void onBluetoothServiceStateChanged(final int state) {
+            if (!mStateMachine.transitionTo(state)) {
+                if (mStateMachine.getState() != state) {
+                    Logger.d(TAG, "Ignored " + Utils.transConnStateAsString(state) + " in "
+                            + Utils.transConnStateAsString(mStateMachine.getState()));
+                }
+                return;
+            }
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
                     tvConnState.setText("Conn state: " + Utils.transConnStateAsString(state));
                 }
             });
+            BluetoothEventLoop.shared().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (state == State.STATE_GOT_CHARACTERISTICS) {
+                        mScanScheduler.stop();
+                        Logger.d(TAG, "Connected in " + mStateMachine.measure(
+                                State.STATE_CONNECTING, State.STATE_GOT_CHARACTERISTICS) + "ms");
+                        loadDeviceProfile();
+                        mClockSynchronizer.sync();
+                        if (mConnectingMac != null) {
+                            mKnownDevices.onConnectResult(mConnectingMac, true);
+                            mConnectingMac = null;
+                        }
+                    }
+                    if (state == State.STATE_DISCONNECTED || state == State.STATE_NONE) {
+                        DeviceStateHolder.setConnected(null);
+                        mClockSynchronizer.cancel();
+                        BluetoothEventLoop.shared().removeCallbacks(mBatteryRefresh);
+                        // The accounting closes the session itself on disconnect
+                        BluetoothEventLoop.shared().removeCallbacks(mRealTimeIdle);
+                        mRealTimeActive = false;
+                        if (mConnectingMac != null) {
+                            mKnownDevices.onConnectResult(mConnectingMac, false);
+                            mConnectingMac = null;
+                        }
+                        mPriorityGovernor.reset();
+                        mBulkWriter.cancel();
+                        // Keeps what the sync got so far, the next one picks up after it
+                        mHistorySync.interrupt();
+                        mSyncValidator.begin();
+                        // Whatever is still queued belongs to the lost link
+                        mInboundQueue.clear();
+                        Logger.d(TAG, mCommandLane.getMetrics().toString());
+                    }
+                }
+            });
         }
 
         @Override
         public void onActionDeviceFound(final BluetoothDevice device, short rssi) {
+            mScanScheduler.onDeviceFound(device.getAddress());
+            final KnownDevice known = mKnownDevices.onScanResult(device, rssi);
+            if (known == null || known.getName() == null || !known.getName().startsWith(REMOTE_NAME)) {
+                return;
+            }
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        if (device.getName().contains("BODHI")) {
-                            String key = device.getName() + "@" + device.getAddress();
-                            if (!mList.contains(key)) {
-                                mList.add(key);
-                            }
-                            mFoundAdapter.notifyDataSetChanged();
-                        }
-                    } catch (NullPointerException e) {
-
+                    if (!mList.contains(known)) {
+                        mList.add(known);
                     }
+                    mFoundAdapter.notifyDataSetChanged();
                 }
             });
         }
@@ -251,9 +329,8 @@ public class BleActivity extends AppCompatActivity {
             mList.clear();
             mFoundAdapter.notifyDataSetChanged();
 
-            if (mBLEController.startScan()) {
-                Toast.makeText(BleActivity.this, "Scanning!", Toast.LENGTH_SHORT).show();
-            }
+            mScanScheduler.start();
+            Toast.makeText(BleActivity.this, "Scanning!", Toast.LENGTH_SHORT).show();
         }
         super.onActivityResult(requestCode, resultCode, data);
     }
@@ -292,26 +369,136 @@ public class BleActivity extends AppCompatActivity {
 
     private void init() {
 
-        //註冊Handler
+        //註冊Handler, CommandController results are delivered on BluetoothEventLoop
         CommandController.shared().addListener(OnSyncHandler.class, syncHandler);
         CommandController.shared().addListener(OnSettingHandler.class, settingHandler);
         CommandController.shared().addListener(OnGettingHandler.class, responseHandler);
-        CommandController.shared().addListener(OnBindUnBindHandler.class, bindUnBindHandler);
 
-        mBLEController = BluetoothLEController.shared().build(this);
-        mBLEController.addListener(BluetoothLEListener.class, mBluetoothLEListener);
+        // The controller outlives this activity, only listeners come and go with it
+        ConnectionHost host = ConnectionHost.shared(this);
+        mBLEController = host.getLEController();
+        mEventRouter = host.getEventRouter();
+        mWriteScheduler = host.getWriteScheduler();
+        mWriteScheduler.setDefaultUuid(WRITE_CHARACTERISTIC_UUID);
+        mRadioAccounting = host.getRadioAccounting();
+        mScanScheduler = host.getScanScheduler();
+        mRadioAccounting.setSyncCharacteristics(SYNC_READ_CHARACTERISTIC_ID, SYNC_WRITE_CHARACTERISTIC_ID);
+        mStateMachine.transitionTo(mBLEController.getConnectionState());
+        mEventRouter.subscribe(mBluetoothLEListener, GattEventRouter.EVENT_ALL);
+        if (RECORD_GATT_TRAFFIC) {
+            startTrafficRecorder();
+        }
+        mSyncValidator = new SyncPacketValidator(SYNC_SEQUENCE_OFFSET, SYNC_SEQUENCE_BYTES, SYNC_CRC,
+                new SyncPacketValidator.PacketSink() {
+                    @Override
+                    public void onPacket(byte[] packet) {
+                        addSyncPacket(packet);
+                    }
+                });
+        mSyncValidator.setOnIntegrityListener(mIntegrityListener);
 
-        mList = new ArrayList<String>();
-        mFoundAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, mList);
+        mPriorityGovernor = new ConnectionPriorityGovernor(new DefaultConnectionPriorityPolicy(),
+                new GattPriorityApplier(mBLEController));
+        mPriorityGovernor.addListener(new ConnectionPriorityGovernor.OnDecisionListener() {
+            @Override
+            public void onPriorityDecision(ConnectionPriorityGovernor.Decision decision) {
+                Logger.d(TAG, decision.toString());
+            }
+        });
 
-        //取得已綁定的Device
-        Set<BluetoothDevice> bondedList = mBLEController.getBondedDevices();
-        for (BluetoothDevice device : bondedList) {
-            if (device.getName().contains("BODHI")) {
-                String key = device.getName() + "@" + device.getAddress();
-                mList.add(key);
+        mProfileCache = DeviceProfileCache.shared(this);
+        mHistorySync = HistorySync.shared(this);
+
+        // The device clock counts seconds
+        mClockSynchronizer = new ClockSynchronizer(new ClockSynchronizer.TimeChannel() {
+            @Override
+            public void requestTime() {
+                mWriteScheduler.write(WriteScheduler.Lane.INTERACTIVE, GetDeviceTimeKit.getCommand());
+            }
+
+            @Override
+            public void setTime(long deviceMillis) {
+                Calendar calendar = Calendar.getInstance();
+                calendar.setTimeInMillis(deviceMillis);
+                mWriteScheduler.write(WriteScheduler.Lane.INTERACTIVE, SetTimeKit.getCommand(calendar));
+            }
+        }, 1000);
+        mClockSynchronizer.setOnClockSyncListener(new ClockSynchronizer.OnClockSyncListener() {
+            @Override
+            public void onClockSynced(ClockSynchronizer.Estimate estimate) {
+                Logger.d(TAG, "Device clock set, " + estimate);
+            }
+
+            @Override
+            public void onClockSyncFailed(String reason) {
+                Logger.e(TAG, "Device clock not set: " + reason + ", "
+                        + mClockSynchronizer.getDroppedReplies() + " replies dropped");
+            }
+        });
+
+        // Inbound notifications in arrival order, sync data must never be dropped
+        NotificationQueue.Consumer resultConsumer = new NotificationQueue.Consumer() {
+            @Override
+            public void onNotification(byte[] value) {
+                try {
+                    CommandController.shared().getResult(value);
+                } catch (DIException e) {
+                    showToast(e.getMessage());
+                }
+            }
+        };
+        mInboundQueue = new NotificationQueue(BluetoothEventLoop.shared().getHandler());
+        mCommandLane = mInboundQueue.addLane(READ_CHARACTERISTIC_UUID, 64,
+                NotificationQueue.OverflowPolicy.DROP_OLDEST, null, resultConsumer);
+        mSyncLane = mInboundQueue.addLane(SYNC_READ_CHARACTERISTIC_ID, 1024,
+                NotificationQueue.OverflowPolicy.NEVER_DROP, null, resultConsumer);
+        mInboundQueue.setOnOverflowListener(new NotificationQueue.OnOverflowListener() {
+            @Override
+            public void onOverflow(NotificationQueue.Lane lane) {
+                // Everything before the overflow was delivered, keep it and stop the sync
+                Logger.d(TAG, "Sync overflow: " + lane.getMetrics());
+                abortSync();
+            }
+        });
+        mCommandSubscriber = new GattEventAdapter() {
+            @Override
+            public void onDataChanged(BluetoothGattCharacteristic characteristic) {
+                mCommandLane.offer(characteristic.getValue());
+            }
+        };
+        mSyncSubscriber = new GattEventAdapter() {
+            @Override
+            public void onDataChanged(BluetoothGattCharacteristic characteristic) {
+                mSyncLane.offer(characteristic.getValue());
+            }
+        };
+        mEventRouter.subscribe(mCommandSubscriber, GattEventRouter.EVENT_CHANGE, READ_CHARACTERISTIC_UUID);
+        mEventRouter.subscribe(mSyncSubscriber, GattEventRouter.EVENT_CHANGE, SYNC_READ_CHARACTERISTIC_ID);
+
+        // Bulk writes such as firmware images or large settings payloads
+        mBulkWriter = new WindowedWriter(mWriteScheduler, WRITE_CHARACTERISTIC_UUID,
+                WindowedWriter.DEFAULT_WINDOW);
+        mBulkWriter.setOnTransferListener(new WindowedWriter.OnTransferListener() {
+            @Override
+            public void onQueueDepthChanged(int pending) {
+                mPriorityGovernor.onWriteQueueDepthChanged(pending);
+            }
+
+            @Override
+            public void onFrameSent(long sequence) {
             }
-        }
+
+            @Override
+            public void onTransferFailed(long sequence, byte[] frame) {
+                Logger.e(TAG, "Bulk write failed at frame " + sequence);
+                showToast("Write failed");
+            }
+        });
+
+        //取得已綁定的Device
+        mKnownDevices = KnownDeviceRegistry.shared(this, REMOTE_NAME);
+        mList = new ArrayList<KnownDevice>();
+        mFoundAdapter = new ArrayAdapter<KnownDevice>(this, android.R.layout.simple_list_item_1, mList);
 
 //        String key = REMOTE_NAME + "@" + REMOTE_MAC;
 //        mList.add(key);
@@ -352,9 +539,9 @@ public class BleActivity extends AppCompatActivity {
                 mList.clear();
                 mFoundAdapter.notifyDataSetChanged();
 
-                if (mBLEController.startScan()) {
-                    Toast.makeText(BleActivity.this, "Scanning!", Toast.LENGTH_SHORT).show();
-                }
+                //持續掃描直到連線
+                mScanScheduler.start();
+                Toast.makeText(BleActivity.this, "Scanning!", Toast.LENGTH_SHORT).show();
 
 //                You can scan by service using the following code:
 //                List<UUID> uuids = new ArrayList<UUID>();
@@ -394,7 +581,7 @@ public class BleActivity extends AppCompatActivity {
                 }
                 byte[] data = GetDeviceInfoKit.getCommand();
                 Utils.logCommand("onClick", data);
-                mBLEController.write(data);
+                mWriteScheduler.write(WriteScheduler.Lane.INTERACTIVE, data);
             }
         });
 
@@ -405,12 +592,9 @@ public class BleActivity extends AppCompatActivity {
                     Toast.makeText(BleActivity.this, "尚未連線", Toast.LENGTH_SHORT).show();
                     return;
                 }
-                final IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-                registerReceiver(mBondingBroadcastReceiver, filter);
                 //Bind
-                byte[] data = BindKit.getCommand(Build.VERSION.SDK_INT);
-                Utils.logCommand("onClick", data);
-                mBLEController.write(data);
+                BondManager.shared(BleActivity.this).bind(
+                        mBLEController.getConnectedDevice().getAddress(), mBondResultListener);
             }
         });
 
@@ -421,8 +605,6 @@ public class BleActivity extends AppCompatActivity {
                     Toast.makeText(BleActivity.this, "尚未連線", Toast.LENGTH_SHORT).show();
                     return;
                 }
-                final IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-                registerReceiver(mBondingBroadcastReceiver, filter);
 //                byte[] data = GetDeviceInfoKit.getNotifyCommand();
 //                byte[] data = GetDeviceTimeKit.getNotifyCommand();
 //                byte[] data = GetSupportFunctionsKit.getNotifyCommand();
@@ -430,9 +612,8 @@ public class BleActivity extends AppCompatActivity {
 //                byte[] data = GetBattertInfoKit.getNotifyCommand();
 //                byte[] data = GetRealTimeDataKit.getNotifyCommand();
 //                byte[] data = GetRealTimeBodhi.getNotifyCommand();
-                byte[] data = UnBindKit.getCommand();
-                Utils.logCommand("onClick", data);
-                mBLEController.write(data);
+                BondManager.shared(BleActivity.this).unBind(
+                        mBLEController.getConnectedDevice().getAddress(), mBondResultListener);
             }
         });
 
@@ -441,7 +622,7 @@ public class BleActivity extends AppCompatActivity {
             public void onClick(View view) {
                 byte[] data = SyncRequestKit.getCommand(SyncType.manual, SyncMode.safe);
                 Utils.logCommand("onClick", data);
-                mBLEController.write(data, SYNC_WRITE_CHARACTERISTIC_ID);
+                mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
             }
         });
 
@@ -450,8 +631,9 @@ public class BleActivity extends AppCompatActivity {
             public void onClick(View view) {
                 byte[] data = SyncSportRequestKit.getCommand(SyncState.begin);
                 Utils.logCommand("onClick", data);
+                mCurrentSync = CommandKit.SyncSport;
                 CommandController.shared().setCurrentSyncRequest(CommandKit.SyncSport);
-                mBLEController.write(data, SYNC_WRITE_CHARACTERISTIC_ID);
+                mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
             }
         });
 
@@ -460,8 +642,9 @@ public class BleActivity extends AppCompatActivity {
             public void onClick(View view) {
                 byte[] data = SyncSportRequestKit.getHistoryCommand(SyncState.begin);
                 Utils.logCommand("onClick", data);
+                mCurrentSync = CommandKit.SyncSportHistory;
                 CommandController.shared().setCurrentSyncRequest(CommandKit.SyncSportHistory);
-                mBLEController.write(data, SYNC_WRITE_CHARACTERISTIC_ID);
+                mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
             }
         });
 
@@ -470,15 +653,14 @@ public class BleActivity extends AppCompatActivity {
             public void onClick(View view) {
                 byte[] data = SyncRequestKit.getStopCommand(SyncType.manual, SyncMode.safe);
                 Utils.logCommand("onClick", data);
-                mBLEController.write(data, SYNC_WRITE_CHARACTERISTIC_ID);
+                mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
             }
         });
 
         lvDevices.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String itemStr = mList.get(position);
-                mBLEController.connect(itemStr.substring(itemStr.length() - 17));
+                connect(mList.get(position));
             }
         });
 
@@ -487,21 +669,220 @@ public class BleActivity extends AppCompatActivity {
             finish();
         }
 
-        //自動連上線
-        if (mList.size() > 0) {
-            String itemStr = mList.get(0);
-            String mac = itemStr.substring(itemStr.length() - 17);
-            mBLEController.connect(mac);
-        }
+        mKnownDevices.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                mKnownDevices.importBonded(mBLEController.getBondedDevices());
+                final List<KnownDevice> known = mKnownDevices.getByPrefix(REMOTE_NAME);
+                final KnownDevice candidate = mKnownDevices.getAutoConnectCandidate(REMOTE_NAME);
+                List<String> macs = new ArrayList<String>(known.size());
+                for (KnownDevice device : known) {
+                    macs.add(device.getAddress());
+                }
+                // Cached profiles are there before any of them connects
+                mProfileCache.preload(macs);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        for (KnownDevice device : known) {
+                            if (!mList.contains(device)) {
+                                mList.add(device);
+                            }
+                        }
+                        mFoundAdapter.notifyDataSetChanged();
+                        //自動連上線
+                        if (candidate != null && mStateMachine.getState() == State.STATE_NONE) {
+                            connect(candidate);
+                        }
+                    }
+                });
+            }
+        });
 
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mBLEController.release();
+        CommandController.shared().removeListener(OnSyncHandler.class, syncHandler);
+        CommandController.shared().removeListener(OnSettingHandler.class, settingHandler);
+        CommandController.shared().removeListener(OnGettingHandler.class, responseHandler);
+        mEventRouter.unsubscribe(mBluetoothLEListener);
+        mEventRouter.unsubscribe(mCommandSubscriber);
+        mEventRouter.unsubscribe(mSyncSubscriber);
+        if (mTrafficRecorder != null) {
+            mEventRouter.unsubscribe(mTrafficRecorder);
+            mTrafficRecorder.close();
+        }
+        mScanScheduler.stop();
+        mClockSynchronizer.cancel();
+        BluetoothEventLoop.shared().removeCallbacks(mBatteryRefresh);
+        BluetoothEventLoop.shared().removeCallbacks(mRealTimeIdle);
+        mRadioAccounting.endSession(RadioAccounting.Category.REALTIME);
+        mPriorityGovernor.reset();
+        mBulkWriter.cancel();
+    }
+
+    private void startTrafficRecorder() {
+        File dir = new File(getFilesDir(), "traces");
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        try {
+            mTrafficRecorder = new GattTrafficRecorder(new File(dir, System.currentTimeMillis() + ".gtr"));
+            mEventRouter.subscribe(mTrafficRecorder, GattEventRouter.EVENT_CONNECTION_STATE
+                    | GattEventRouter.EVENT_READ | GattEventRouter.EVENT_WRITE
+                    | GattEventRouter.EVENT_CHANGE);
+        } catch (IOException e) {
+            Logger.e(TAG, "Cannot start traffic recorder: " + e.getMessage());
+        }
+    }
+
+    private void connect(KnownDevice device) {
+        mConnectingMac = device.getAddress();
+        mBLEController.connect(mConnectingMac);
+    }
+
+    private SyncPacketValidator.OnIntegrityListener mIntegrityListener =
+            new SyncPacketValidator.OnIntegrityListener() {
+        @Override
+        public void onRetransmitNeeded(List<int[]> ranges) {
+            Logger.d(TAG, "Missing " + ranges.size() + " sync ranges, "
+                    + mSyncValidator.getCorruptCount() + " corrupt packets");
+            // The protocol has no range request: run the same sync again, take only the
+            // missing packets and stop as soon as they are all in
+            mSyncValidator.beginRetransmit();
+            byte[] data = mCurrentSync == CommandKit.SyncSportHistory
+                    ? SyncSportRequestKit.getHistoryCommand(SyncState.begin)
+                    : SyncSportRequestKit.getCommand(SyncState.begin);
+            mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
+        }
+
+        @Override
+        public void onGapsFilled() {
+            // No need to wait for the rest of the replay
+            stopSync();
+        }
+
+        @Override
+        public void onComplete(int packets, int corrupt, int passes) {
+            Logger.d(TAG, "Sync received " + packets + " packets, " + corrupt + " corrupt, "
+                    + passes + " passes");
+        }
+
+        @Override
+        public void onIncomplete(List<int[]> ranges) {
+            showToast("同步資料不完整");
+        }
+    };
+
+    private void addSyncPacket(byte[] packet) {
+        CommandController.shared().addPacket(packet);
+        mHistorySync.onPacket(packet);
+    }
+
+    /**
+     * Sends the stop command and stores the synced history once per sync, whether the sync
+     * ended or a retransmit pass got every missing packet early.
+     */
+    private void stopSync() {
+        if (mSyncStopSent) {
+            return;
+        }
+        mSyncStopSent = true;
+        mHistorySync.end();
+        byte[] data = SyncRequestKit.getStopCommand(SyncType.manual, SyncMode.safe);
+        mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
+    }
+
+    /**
+     * Stops a sync that cannot go on, keeping the records received so far. The next sync
+     * picks up after them.
+     */
+    private void abortSync() {
+        if (mSyncStopSent) {
+            return;
+        }
+        mSyncStopSent = true;
+        mHistorySync.interrupt();
+        mSyncValidator.begin();
+        byte[] data = SyncRequestKit.getStopCommand(SyncType.manual, SyncMode.safe);
+        mWriteScheduler.write(WriteScheduler.Lane.CONTROL, data, SYNC_WRITE_CHARACTERISTIC_ID);
+    }
+
+    /**
+     * @return the state holder of the device the responses come from, {@code null} when none
+     * is connected
+     */
+    private DeviceStateHolder connectedState() {
+        BluetoothDevice device = mBLEController.getConnectedDevice();
+        return device == null ? null : DeviceStateHolder.forMac(device.getAddress());
+    }
+
+    private void showToast(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(BleActivity.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Serves the cached profile of the connected device right away and only asks the device
+     * again when the cached info is missing or expired.
+     */
+    private void loadDeviceProfile() {
+        BluetoothDevice device = mBLEController.getConnectedDevice();
+        if (device == null) {
+            return;
+        }
+        DeviceProfileCache.Entry entry = mProfileCache.load(device.getAddress());
+        mProfileCache.preload(Collections.singletonList(device.getAddress()));
+        DeviceStateHolder.setConnected(device.getAddress());
+        if (mProfileCache.isDeviceInfoStale(entry)) {
+            mWriteScheduler.write(WriteScheduler.Lane.CONTROL, GetDeviceInfoKit.getCommand());
+        }
+        if (mProfileCache.isBatteryInfoStale(entry)) {
+            mWriteScheduler.write(WriteScheduler.Lane.CONTROL, GetBattertInfoKit.getCommand());
+        }
+        // Battery info goes stale while connected too
+        BluetoothEventLoop.shared().removeCallbacks(mBatteryRefresh);
+        BluetoothEventLoop.shared().postDelayed(mBatteryRefresh, mProfileCache.getBatteryInfoTtl());
+    }
+
+    /**
+     * Books the radio time of a real-time stream as a {@link RadioAccounting.Category#REALTIME}
+     * session, from its first response until it pauses.
+     */
+    private void onRealTimeData() {
+        if (!mRealTimeActive) {
+            mRealTimeActive = true;
+            mRadioAccounting.beginSession(RadioAccounting.Category.REALTIME);
+        }
+        BluetoothEventLoop.shared().removeCallbacks(mRealTimeIdle);
+        BluetoothEventLoop.shared().postDelayed(mRealTimeIdle, REALTIME_IDLE_MILLIS);
     }
 
+    private final Runnable mRealTimeIdle = new Runnable() {
+        @Override
+        public void run() {
+            mRealTimeActive = false;
+            mRadioAccounting.endSession(RadioAccounting.Category.REALTIME);
+        }
+    };
+
+    private final Runnable mBatteryRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mWriteScheduler.write(WriteScheduler.Lane.CONTROL, GetBattertInfoKit.getCommand());
+            BluetoothEventLoop.shared().postDelayed(this, mProfileCache.getBatteryInfoTtl());
+        }
+    };
+
     private String parseData(BluetoothGattCharacteristic characteristic) {
 
         String result = characteristic.getStringValue(0);
@@ -536,24 +917,15 @@ public class BleActivity extends AppCompatActivity {
     /**
      * BLE response handler
     * */
-    private OnBindUnBindHandler bindUnBindHandler = new OnBindUnBindHandler() {
+    private BondManager.OnBondResultListener mBondResultListener = new BondManager.OnBondResultListener() {
         @Override
-        public void onBindCompletion(BaseResponse response) {
-            if (response.getStatus()) {
-                mBLEController.bond();
-                Toast.makeText(BleActivity.this, "綁定成功", Toast.LENGTH_LONG).show();
+        public void onBondResult(String mac, boolean bind, String error) {
+            if (error != null) {
+                showToast(error);
             } else {
-                Toast.makeText(BleActivity.this, response.getError().getMessage(), Toast.LENGTH_LONG).show();
-            }
-        }
-
-        @Override
-        public void onUnBindCompletion(BaseResponse response) {
-            if (response.getStatus()) {
-                mBLEController.unBond();
-                Toast.makeText(BleActivity.this, "解除綁定成功", Toast.LENGTH_LONG).show();
-            } else {
-                Toast.makeText(BleActivity.this, response.getError().getMessage(), Toast.LENGTH_LONG).show();
+                mKnownDevices.onBondStateChanged(mac,
+                        bind ? BluetoothDevice.BOND_BONDED : BluetoothDevice.BOND_NONE);
+                showToast(bind ? "綁定成功" : "解除綁定成功");
             }
         }
     };
@@ -567,16 +939,30 @@ public class BleActivity extends AppCompatActivity {
         @Override
         public void onGetDeviceInfoCompletion(DeviceInfoResponse response) {
             Logger.i("DeviceInfoResponse", response.toString());
+            DeviceStateHolder holder = connectedState();
+            if (holder != null) {
+                mProfileCache.onDeviceInfoUpdated(holder.setDeviceInfo(response));
+            }
         }
 
         @Override
         public void onGetSupportFunctionsCompletion(SupportFunctionsResponse response) {
             Logger.i("DeviceInfoResponse", response.toString());
+            DeviceStateHolder holder = connectedState();
+            if (holder != null) {
+                holder.setSupportFunctions(response);
+            }
         }
 
         @Override
         public void onGetTimeCompletion(DeviceTimeResponse response) {
             Logger.i(response.toString());
+            // The device keeps local time
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(response.getYear(), response.getMonth() - 1, response.getDay(),
+                    response.getHour(), response.getMinute(), response.getSecond());
+            mClockSynchronizer.onDeviceTime(calendar.getTimeInMillis());
         }
 
         @Override
@@ -587,23 +973,31 @@ public class BleActivity extends AppCompatActivity {
         @Override
         public void onGetBatteryInfoCompletion(BatteryInfoResponse response) {
             Logger.i(response.toString());
+            DeviceStateHolder holder = connectedState();
+            if (holder != null) {
+                mProfileCache.onBatteryInfoUpdated(holder.setBatteryInfo(response));
+            }
         }
 
         @Override
         public void onGetRealTimeDataCompletion(RealTimeDataResponse response) {
             Logger.i(response.toString());
+            onRealTimeData();
         }
 
         @Override
         public void onGetRealTimeBodhiCompletion(RealTimeBodhiResponse response) {
             Logger.i(response.toString());
+            onRealTimeData();
         }
     };
 
     private OnSettingHandler settingHandler = new OnSettingHandler() {
         @Override
         public void onSetTimeCompletion(BaseResponse response) {
-
+            if (!response.getStatus()) {
+                Logger.e(TAG, "Set time failed: " + response.getError());
+            }
         }
 
         @Override
@@ -650,56 +1044,60 @@ public class BleActivity extends AppCompatActivity {
     private OnSyncHandler syncHandler = new OnSyncHandler() {
         @Override
         public void onBeginRequestCompletion(BaseResponse response) {
-            btnBeginSync.setEnabled(true);
-            btnHistorySync.setEnabled(true);
+            mPriorityGovernor.onSyncSessionBegin();
+            mRadioAccounting.beginSession(RadioAccounting.Category.SYNC);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    btnBeginSync.setEnabled(true);
+                    btnHistorySync.setEnabled(true);
+                }
+            });
         }
 
         @Override
         public void onSyncBegin() {
+            if (mSyncValidator.isRetransmitting()) {
+                //補傳, keep what was received
+                return;
+            }
+            mSyncValidator.begin();
+            mSyncStopSent = false;
             CommandController.shared().clearPackets();
+            BluetoothDevice device = mBLEController.getConnectedDevice();
+            if (device != null) {
+                mHistorySync.begin(device.getAddress(),
+                        mCurrentSync != null ? mCurrentSync : CommandKit.SyncSport);
+            }
         }
 
         @Override
         public void onSyncPacketReceived(byte[] data) {
-            CommandController.shared().addPacket(data);
+            mSyncValidator.onPacket(data);
         }
 
         @Override
         public void onSyncEnd() {
-            byte[] data = SyncRequestKit.getStopCommand(SyncType.manual, SyncMode.safe);
-            mBLEController.write(data, SYNC_WRITE_CHARACTERISTIC_ID);
+            if (!mSyncValidator.end()) {
+                // Packets are missing, the integrity listener asks for them again
+                return;
+            }
+            stopSync();
         }
 
         @Override
         public void onEndRequestCompletion(BaseResponse response) {
-            btnBeginSync.setEnabled(false);
-            btnHistorySync.setEnabled(false);
-        }
-    };
-
-    private BroadcastReceiver mBondingBroadcastReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(final Context context, final Intent intent) {
-            final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            final int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
-            final int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
-
-            Logger.e(TAG, "Bond state changed for: " + device.getAddress() + " new state: " + bondState + " previous: " + previousBondState);
-
-            // skip other devices
-            if (!device.getAddress().equals(mBLEController.getConnectedDevice().getAddress()))
-                return;
-
-            if (bondState == BluetoothDevice.BOND_BONDED) {
-                unregisterReceiver(this);
-                Toast.makeText(BleActivity.this, "Bonded", Toast.LENGTH_LONG);
-            } else if (bondState == BluetoothDevice.BOND_BONDING) {
-                Toast.makeText(BleActivity.this, "Bonding", Toast.LENGTH_LONG);
-            }
-            else if (bondState == BluetoothDevice.BOND_NONE) {
-                unregisterReceiver(this);
-                Toast.makeText(BleActivity.this, "Bond faild", Toast.LENGTH_LONG);
-            }
+            mPriorityGovernor.onSyncSessionEnd();
+            mRadioAccounting.endSession(RadioAccounting.Category.SYNC);
+            Logger.d(TAG, mSyncLane.getMetrics().toString());
+            Logger.d(TAG, "Sync radio usage: " + mRadioAccounting.getTotal(RadioAccounting.Category.SYNC));
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    btnBeginSync.setEnabled(false);
+                    btnHistorySync.setEnabled(false);
+                }
+            });
         }
     };
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package co.lujun.sample;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * The one thread all BLE state and I/O completions are handled on. GATT callbacks arrive on
+ * binder threads and broadcasts on the main thread; both hand their work over to this loop so
+ * connection state, write queues and command decoding never race and need no locking among
+ * themselves. UI updates are posted back to the main thread.
+ * <p>
+ * Nothing that blocks belongs here: classic socket writes run on
+ * {@link ConnectionHost#getClassicIoExecutor()}, and classic callbacks, which only update the
+ * UI, go straight to the main thread.
+ */
+public class BluetoothEventLoop {
+
+    private static BluetoothEventLoop instance;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    public static BluetoothEventLoop shared() {
+        synchronized (BluetoothEventLoop.class) {
+            if (instance == null) {
+                instance = new BluetoothEventLoop();
+            }
+        }
+        return instance;
+    }
+
+    private BluetoothEventLoop() {
+        mThread = new HandlerThread("bluetooth-events", Process.THREAD_PRIORITY_DEFAULT);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public Looper getLooper() {
+        return mThread.getLooper();
+    }
+
+    public boolean isOnLoop() {
+        return Looper.myLooper() == mThread.getLooper();
+    }
+
+    public void post(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Runs {@code runnable} right away when already on the loop, otherwise posts it.
+     */
+    public void execute(Runnable runnable) {
+        if (isOnLoop()) {
+            runnable.run();
+        } else {
+            mHandler.post(runnable);
+        }
+    }
+
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        mHandler.postDelayed(runnable, delayMillis);
+    }
+
+    public void removeCallbacks(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+}
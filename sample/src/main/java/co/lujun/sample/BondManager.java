@@ -0,0 +1,205 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+
+import com.diing.bluetooth.controller.BluetoothLEController;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import diing.com.core.command.bind.BindKit;
+import diing.com.core.command.bind.UnBindKit;
+import diing.com.core.controller.CommandController;
+import diing.com.core.interfaces.OnBindUnBindHandler;
+import diing.com.core.response.BaseResponse;
+import diing.com.core.util.Logger;
+
+/**
+ * Runs bind and unbind as one operation: the {@code BindKit}/{@code UnBindKit} command, its
+ * acknowledgement from the device and the OS bond state change that follows. A single
+ * long-lived receiver for {@link BluetoothDevice#ACTION_BOND_STATE_CHANGED} routes broadcasts
+ * by MAC to the pending operation, and the result is delivered once both sides agree.
+ * All bookkeeping runs on {@link BluetoothEventLoop}. The controller and the write scheduler
+ * are looked up from {@link ConnectionHost} on every operation, as the host may have rebuilt
+ * them since the last one.
+ */
+public class BondManager {
+
+    private static final String TAG = "BondManager";
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30 * 1000L;
+
+    public interface OnBondResultListener {
+        /**
+         * @param bind  {@code true} for bind, {@code false} for unbind
+         * @param error {@code null} on success
+         */
+        void onBondResult(String mac, boolean bind, String error);
+    }
+
+    private class Operation implements Runnable {
+        final String mac;
+        final boolean bind;
+        final OnBondResultListener listener;
+        boolean acknowledged;
+
+        Operation(String mac, boolean bind, OnBondResultListener listener) {
+            this.mac = mac;
+            this.bind = bind;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            finish(this, "Timed out");
+        }
+    }
+
+    private static BondManager instance;
+
+    private final Context mContext;
+    private final ConnectionHost mHost;
+    private final Map<String, Operation> mPending = new HashMap<String, Operation>();
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private boolean mRegistered;
+
+    public static BondManager shared(Context context) {
+        synchronized (BondManager.class) {
+            if (instance == null) {
+                instance = new BondManager(context.getApplicationContext());
+            }
+        }
+        return instance;
+    }
+
+    private BondManager(Context context) {
+        mContext = context;
+        mHost = ConnectionHost.shared(context);
+        CommandController.shared().addListener(OnBindUnBindHandler.class, mProtocolHandler);
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public void bind(String mac, OnBondResultListener listener) {
+        start(new Operation(mac.toUpperCase(), true, listener));
+    }
+
+    public void unBind(String mac, OnBondResultListener listener) {
+        start(new Operation(mac.toUpperCase(), false, listener));
+    }
+
+    private void start(final Operation operation) {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mPending.containsKey(operation.mac)) {
+                    operation.listener.onBondResult(operation.mac, operation.bind,
+                            "Operation already running");
+                    return;
+                }
+                registerReceiver();
+                mPending.put(operation.mac, operation);
+                BluetoothEventLoop.shared().postDelayed(operation, mTimeoutMillis);
+                byte[] data = operation.bind ? BindKit.getCommand(Build.VERSION.SDK_INT)
+                        : UnBindKit.getCommand();
+                Utils.logCommand(TAG, data);
+                mHost.getWriteScheduler().write(WriteScheduler.Lane.INTERACTIVE, data);
+            }
+        });
+    }
+
+    /**
+     * The device answers for the connected device only, so the acknowledgement is matched
+     * to the pending operation of the connected MAC.
+     */
+    private final OnBindUnBindHandler mProtocolHandler = new OnBindUnBindHandler() {
+        @Override
+        public void onBindCompletion(BaseResponse response) {
+            onAcknowledged(true, response);
+        }
+
+        @Override
+        public void onUnBindCompletion(BaseResponse response) {
+            onAcknowledged(false, response);
+        }
+    };
+
+    private void onAcknowledged(final boolean bind, final BaseResponse response) {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothLEController controller = mHost.getLEController();
+                BluetoothDevice device = controller.getConnectedDevice();
+                Operation operation = device == null ? null
+                        : mPending.get(device.getAddress().toUpperCase());
+                if (operation == null || operation.bind != bind) {
+                    return;
+                }
+                if (!response.getStatus()) {
+                    finish(operation, response.getError().getMessage());
+                    return;
+                }
+                operation.acknowledged = true;
+                int bondState = device.getBondState();
+                if (bind && bondState == BluetoothDevice.BOND_BONDED
+                        || !bind && bondState == BluetoothDevice.BOND_NONE) {
+                    finish(operation, null);
+                } else if (bind) {
+                    controller.bond();
+                } else {
+                    controller.unBond();
+                }
+            }
+        });
+    }
+
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Registered with the loop's handler, so mPending is only ever touched on the loop
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
+            int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
+            if (device == null) {
+                return;
+            }
+            Logger.d(TAG, "Bond state changed for: " + device.getAddress() + " new state: "
+                    + bondState + " previous: " + previousBondState);
+
+            Operation operation = mPending.get(device.getAddress().toUpperCase());
+            if (operation == null || !operation.acknowledged) {
+                return;
+            }
+            if (bondState == BluetoothDevice.BOND_BONDED) {
+                finish(operation, operation.bind ? null : "Still bonded");
+            } else if (bondState == BluetoothDevice.BOND_NONE) {
+                finish(operation, operation.bind ? "Bond failed" : null);
+            }
+        }
+    };
+
+    private void registerReceiver() {
+        if (!mRegistered) {
+            IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            mContext.registerReceiver(mBondStateReceiver, filter, null,
+                    BluetoothEventLoop.shared().getHandler());
+            mRegistered = true;
+        }
+    }
+
+    private void finish(Operation operation, String error) {
+        if (mPending.get(operation.mac) != operation) {
+            return;
+        }
+        mPending.remove(operation.mac);
+        BluetoothEventLoop.shared().removeCallbacks(operation);
+        operation.listener.onBondResult(operation.mac, operation.bind, error);
+    }
+}
@@ -25,7 +25,7 @@ public class ChatActivity extends Activity {
     private EditText etSend;
     private TextView tvConnectState, tvContent, tvDeviceName, tvDeviceMac;
 
-    private int mConnectState;
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
     private String mMacAddress = "", mDeviceName = "";
 
     private static final String TAG = "LMBluetoothSdk";
@@ -42,7 +42,8 @@ public class ChatActivity extends Activity {
         mMacAddress = getIntent().getStringExtra("mac");
         mDeviceName = getIntent().getStringExtra("name");
 
-        mBluetoothController = BluetoothController.getInstance();
+        mBluetoothController = ConnectionHost.shared(this).getClassicController();
+        mStateMachine.transitionTo(mBluetoothController.getConnectionState());
         mBluetoothController.setBluetoothListener(new BluetoothListener() {
 
             @Override
@@ -56,8 +57,13 @@ public class ChatActivity extends Activity {
             }
 
             @Override
-            public void onActionStateChanged(int preState, int state) {
-                Toast.makeText(ChatActivity.this, "BT state: " + state, Toast.LENGTH_SHORT).show();
+            public void onActionStateChanged(int preState, final int state) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(ChatActivity.this, "BT state: " + state, Toast.LENGTH_SHORT).show();
+                    }
+                });
             }
 
             @Override
@@ -72,8 +78,9 @@ public class ChatActivity extends Activity {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        mConnectState = state;
-                        tvConnectState.setText("Connection state: " + Utils.transConnStateAsString(state));
+                        if (mStateMachine.transitionTo(state)) {
+                            tvConnectState.setText("Connection state: " + Utils.transConnStateAsString(state));
+                        }
                     }
                 });
             }
@@ -114,7 +121,14 @@ public class ChatActivity extends Activity {
                 if (TextUtils.isEmpty(msg)) {
                     return;
                 }
-                mBluetoothController.write(msg.getBytes());
+                final byte[] data = msg.getBytes();
+                // The socket write blocks, keep it off the main thread and the event loop
+                ConnectionHost.shared(ChatActivity.this).getClassicIoExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBluetoothController.write(data);
+                    }
+                });
                 tvContent.append("Me: " + msg + "\n");
                 etSend.setText("");
             }
@@ -123,7 +137,7 @@ public class ChatActivity extends Activity {
         btnDisconnect.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (mConnectState == State.STATE_CONNECTED) {
+                if (mStateMachine.getState() == State.STATE_CONNECTED) {
                     mBluetoothController.disconnect();
                 }
                 finish();
@@ -142,4 +156,14 @@ public class ChatActivity extends Activity {
             tvDeviceMac.setText("MAC address: " + mMacAddress);
         }
     }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Detach before the previous activity gets its result and sets its own listener back;
+        // onDestroy comes after that
+        if (isFinishing()) {
+            mBluetoothController.setBluetoothListener(null);
+        }
+    }
 }
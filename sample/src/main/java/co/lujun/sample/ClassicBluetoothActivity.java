@@ -54,8 +54,13 @@ public class ClassicBluetoothActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onActionStateChanged(int preState, int state) {
-            tvBTState.setText("Bluetooth state: " + Utils.transBtStateAsString(state));
+        public void onActionStateChanged(int preState, final int state) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    tvBTState.setText("Bluetooth state: " + Utils.transBtStateAsString(state));
+                }
+            });
         }
 
         @Override
@@ -73,18 +78,30 @@ public class ClassicBluetoothActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onBluetoothServiceStateChanged(int state) {
+        public void onBluetoothServiceStateChanged(final int state) {
             Log.d(TAG, "bluetooth service state:" + state);
-            if (state == State.STATE_CONNECTED) {
-                Intent intent = new Intent(ClassicBluetoothActivity.this, ChatActivity.class);
-                startActivityForResult(intent, 4);
+            if (state != State.STATE_CONNECTED) {
+                return;
             }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Intent intent = new Intent(ClassicBluetoothActivity.this, ChatActivity.class);
+                    startActivityForResult(intent, 4);
+                }
+            });
         }
 
         @Override
         public void onActionDeviceFound(BluetoothDevice device, short rssi) {
-            mList.add(device.getName() + "@" + device.getAddress());
-            mFoundAdapter.notifyDataSetChanged();
+            final String item = device.getName() + "@" + device.getAddress();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mList.add(item);
+                    mFoundAdapter.notifyDataSetChanged();
+                }
+            });
         }
 
         @Override
@@ -101,7 +118,7 @@ public class ClassicBluetoothActivity extends AppCompatActivity {
     }
 
     private void initBT(){
-        mBluetoothController = BluetoothController.getInstance().build(this);
+        mBluetoothController = ConnectionHost.shared(this).getClassicController();
         mBluetoothController.setAppUuid(UUID.fromString("fa87c0d0-afac-12de-8a39-0450200c9a66"));
         mBluetoothController.setBluetoothListener(mListener);
 
@@ -190,10 +207,7 @@ public class ClassicBluetoothActivity extends AppCompatActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == 4){
-            if (mBluetoothController != null){
-                mBluetoothController.release();
-            }
-            mBluetoothController.build(this);
+            // ChatActivity took the listener over, the controller itself stays as it is
             mBluetoothController.setBluetoothListener(mListener);
         }
     }
@@ -201,7 +215,10 @@ public class ClassicBluetoothActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mBluetoothController.release();
+        // Released by ConnectionHost, the link outlives this activity but the listener does not
+        if (isFinishing()) {
+            mBluetoothController.setBluetoothListener(null);
+        }
     }
 }
 
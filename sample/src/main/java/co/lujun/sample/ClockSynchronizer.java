@@ -0,0 +1,280 @@
+package co.lujun.sample;
+
+import android.os.SystemClock;
+
+/**
+ * Sets the device clock with the link latency taken into account. A sync run does
+ * {@link #DEFAULT_SAMPLES} timed get-time exchanges, estimates the offset of the device clock
+ * NTP-style from the exchange with the smallest round trip, then sets the device time so that
+ * it is right when it arrives rather than when it was sent. Offsets of successive runs give
+ * the drift of the device clock.
+ * <p>
+ * Get-time replies carry no tag, so at most one probe is in flight and a reply only counts
+ * while it is outstanding; unsolicited replies are dropped. A reply that comes after its
+ * probe timed out could be taken for the answer to the next probe, so a timeout is followed by
+ * {@link #QUIET_MILLIS} in which replies are dropped before the next probe goes out.
+ * <p>
+ * All work runs on the {@link BluetoothEventLoop}; the get-time response must be reported
+ * through {@link #onDeviceTime(long)}.
+ */
+public class ClockSynchronizer {
+
+    public static final int DEFAULT_SAMPLES = 5;
+    private static final long RESPONSE_TIMEOUT_MILLIS = 3000;
+    static final long QUIET_MILLIS = 2000;
+    private static final int DRIFT_HISTORY = 8;
+
+    /**
+     * Transport of the time commands.
+     */
+    public interface TimeChannel {
+        /** Writes a get-time command */
+        void requestTime();
+
+        /** Writes a set-time command carrying {@code deviceMillis} */
+        void setTime(long deviceMillis);
+    }
+
+    public interface OnClockSyncListener {
+        void onClockSynced(Estimate estimate);
+
+        void onClockSyncFailed(String reason);
+    }
+
+    public static class Estimate {
+        /** Device clock minus phone clock, in milliseconds, before the clock was set */
+        public final long offset;
+        /** Smallest round trip seen */
+        public final long rtt;
+        /** Device clock drift in parts per million, 0 until two runs are known */
+        public final double driftPpm;
+        /** {@link System#currentTimeMillis()} the estimate refers to */
+        public final long time;
+
+        Estimate(long offset, long rtt, double driftPpm, long time) {
+            this.offset = offset;
+            this.rtt = rtt;
+            this.driftPpm = driftPpm;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return "offset " + offset + "ms, rtt " + rtt + "ms, drift " + driftPpm + "ppm";
+        }
+    }
+
+    private final TimeChannel mChannel;
+    private final long mResolution;
+    private final int mSamples;
+    private OnClockSyncListener mListener;
+
+    private boolean mRunning;
+    private int mSampleCount;
+    private long mSentAt;
+    private long mBestRtt;
+    private long mBestOffset;
+    private long mQuietUntil;
+    private volatile int mDropped;
+    private Runnable mPendingSet;
+
+    // Offsets measured right before each set, as drift samples
+    private final long[] mDriftTimes = new long[DRIFT_HISTORY];
+    private final long[] mDriftOffsets = new long[DRIFT_HISTORY];
+    private int mDriftCount;
+    private volatile Estimate mEstimate;
+    private long mSetAt;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            // A lost response only costs this sample, but its reply may still be on the way
+            mSentAt = 0;
+            mQuietUntil = SystemClock.elapsedRealtime() + QUIET_MILLIS;
+            BluetoothEventLoop.shared().postDelayed(mNextSample, QUIET_MILLIS);
+        }
+    };
+
+    private final Runnable mNextSample = new Runnable() {
+        @Override
+        public void run() {
+            nextSample();
+        }
+    };
+
+    /**
+     * @param resolution resolution of the device clock in milliseconds, e.g. 1000 for a clock
+     *                   that counts seconds
+     */
+    public ClockSynchronizer(TimeChannel channel, long resolution) {
+        this(channel, resolution, DEFAULT_SAMPLES);
+    }
+
+    public ClockSynchronizer(TimeChannel channel, long resolution, int samples) {
+        mChannel = channel;
+        mResolution = Math.max(1, resolution);
+        mSamples = samples;
+    }
+
+    public void setOnClockSyncListener(OnClockSyncListener listener) {
+        mListener = listener;
+    }
+
+    public void sync() {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+                mSampleCount = 0;
+                mBestRtt = Long.MAX_VALUE;
+                long quiet = mQuietUntil - SystemClock.elapsedRealtime();
+                if (quiet > 0) {
+                    BluetoothEventLoop.shared().postDelayed(mNextSample, quiet);
+                } else {
+                    nextSample();
+                }
+            }
+        });
+    }
+
+    public void cancel() {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                if (mSentAt != 0) {
+                    mSentAt = 0;
+                    mQuietUntil = SystemClock.elapsedRealtime() + QUIET_MILLIS;
+                }
+                BluetoothEventLoop.shared().removeCallbacks(mTimeout);
+                BluetoothEventLoop.shared().removeCallbacks(mNextSample);
+                if (mPendingSet != null) {
+                    BluetoothEventLoop.shared().removeCallbacks(mPendingSet);
+                    mPendingSet = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports the time of a get-time response, whether or not a probe asked for it.
+     */
+    public void onDeviceTime(final long deviceMillis) {
+        final long receivedAt = SystemClock.elapsedRealtime();
+        final long wallTime = System.currentTimeMillis();
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning || mSentAt == 0 || receivedAt < mQuietUntil) {
+                    // Unsolicited, or late for a probe that timed out
+                    mDropped++;
+                    return;
+                }
+                BluetoothEventLoop.shared().removeCallbacks(mTimeout);
+                long rtt = receivedAt - mSentAt;
+                mSentAt = 0;
+                if (rtt < mBestRtt) {
+                    // The device read its clock somewhere in the round trip, assume the middle;
+                    // a truncated clock reads on average half a tick late
+                    long midpoint = wallTime - rtt / 2;
+                    mBestRtt = rtt;
+                    mBestOffset = deviceMillis + mResolution / 2 - midpoint;
+                }
+                nextSample();
+            }
+        });
+    }
+
+    /**
+     * @return the latest estimate or {@code null} before the first successful sync
+     */
+    public Estimate getEstimate() {
+        return mEstimate;
+    }
+
+    /**
+     * @return replies dropped as unsolicited or late
+     */
+    public int getDroppedReplies() {
+        return mDropped;
+    }
+
+    private void nextSample() {
+        if (!mRunning) {
+            return;
+        }
+        if (mSampleCount == mSamples) {
+            finish();
+            return;
+        }
+        mSampleCount++;
+        mSentAt = SystemClock.elapsedRealtime();
+        mChannel.requestTime();
+        BluetoothEventLoop.shared().postDelayed(mTimeout, RESPONSE_TIMEOUT_MILLIS);
+    }
+
+    private void finish() {
+        mRunning = false;
+        if (mBestRtt == Long.MAX_VALUE) {
+            if (mListener != null) {
+                mListener.onClockSyncFailed("No time response");
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        addDriftSample(now, mBestOffset);
+        final Estimate estimate = new Estimate(mBestOffset, mBestRtt, estimateDrift(), now);
+        mEstimate = estimate;
+
+        // Send the next tick of the device clock so that it lands on the tick: the command
+        // needs about half the round trip to get there
+        final long oneWay = mBestRtt / 2;
+        long target = (now + oneWay) / mResolution * mResolution + mResolution;
+        final long setTime = target;
+        mPendingSet = new Runnable() {
+            @Override
+            public void run() {
+                mPendingSet = null;
+                mChannel.setTime(setTime);
+                mSetAt = setTime;
+                if (mListener != null) {
+                    mListener.onClockSynced(estimate);
+                }
+            }
+        };
+        BluetoothEventLoop.shared().postDelayed(mPendingSet, target - oneWay - now);
+    }
+
+    private void addDriftSample(long time, long offset) {
+        if (mSetAt == 0) {
+            // Nothing is known about the clock before the first set
+            return;
+        }
+        if (mDriftCount == DRIFT_HISTORY) {
+            System.arraycopy(mDriftTimes, 1, mDriftTimes, 0, DRIFT_HISTORY - 1);
+            System.arraycopy(mDriftOffsets, 1, mDriftOffsets, 0, DRIFT_HISTORY - 1);
+            mDriftCount--;
+        }
+        // Offset gained since the clock was last set
+        mDriftTimes[mDriftCount] = time - mSetAt;
+        mDriftOffsets[mDriftCount] = offset;
+        mDriftCount++;
+    }
+
+    /**
+     * Each sample is the offset gained over the time since the clock was last set, so the
+     * drift is the least-squares slope through the origin.
+     */
+    private double estimateDrift() {
+        double sumXY = 0;
+        double sumXX = 0;
+        for (int i = 0; i < mDriftCount; i++) {
+            sumXY += (double) mDriftTimes[i] * mDriftOffsets[i];
+            sumXX += (double) mDriftTimes[i] * mDriftTimes[i];
+        }
+        return sumXX == 0 ? 0 : sumXY / sumXX * 1e6;
+    }
+}
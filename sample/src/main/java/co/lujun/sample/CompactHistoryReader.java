@@ -0,0 +1,129 @@
+package co.lujun.sample;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the format written by {@link CompactHistoryWriter} one record at a time. Plain Java,
+ * so the backend can use it as is. A block whose checksum does not match fails with an
+ * {@link IOException} before any of its records are returned.
+ */
+public class CompactHistoryReader implements Closeable {
+
+    private final DataInputStream mIn;
+    private final CRC32 mCrc = new CRC32();
+    private final CompactHistoryWriter.BlockState mState = new CompactHistoryWriter.BlockState();
+
+    private byte[] mBlock = new byte[4096];
+    private int mPosition;
+    private int mRemaining;
+    private boolean mFirst;
+    private boolean mEnded;
+
+    public CompactHistoryReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(in);
+        if (mIn.readInt() != CompactHistoryWriter.MAGIC) {
+            throw new IOException("Not a compact history stream");
+        }
+        int version = mIn.readUnsignedByte();
+        if (version != CompactHistoryWriter.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+    }
+
+    /**
+     * @return the next record or {@code null} at the end of the stream
+     */
+    public HistoryRecord next() throws IOException {
+        if (mRemaining == 0 && !readBlock()) {
+            return null;
+        }
+        mRemaining--;
+        long delta = readZigZag();
+        long interval = mFirst ? delta : mState.interval + delta;
+        long time = mFirst ? interval : mState.time + interval;
+        mState.interval = mFirst ? 0 : interval;
+        mState.time = time;
+        mFirst = false;
+
+        int type = (int) readVarint();
+        int flags = (int) readVarint();
+        int[] previous = mState.valuesOf(type);
+        int[] values = new int[HistoryRecord.VALUE_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            long value = readZigZag();
+            values[i] = previous == null ? (int) value : (int) (previous[i] + value);
+            if (previous != null) {
+                previous[i] = values[i];
+            }
+        }
+        return new HistoryRecord(time, type, flags, values);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        if (mEnded) {
+            return false;
+        }
+        int count = readStreamVarint();
+        if (count == 0) {
+            mEnded = true;
+            return false;
+        }
+        int length = readStreamVarint();
+        if (length > mBlock.length) {
+            mBlock = new byte[Math.max(length, mBlock.length * 2)];
+        }
+        mIn.readFully(mBlock, 0, length);
+        mCrc.reset();
+        mCrc.update(mBlock, 0, length);
+        if ((int) mCrc.getValue() != mIn.readInt()) {
+            throw new IOException("Block checksum mismatch");
+        }
+        mPosition = 0;
+        mRemaining = count;
+        mFirst = true;
+        mState.reset();
+        return true;
+    }
+
+    private long readZigZag() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = mBlock[mPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readStreamVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,197 @@
+package co.lujun.sample;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Streams {@link HistoryRecord}s into a compact binary format for upload, a block at a time so
+ * nothing but the current block is held in memory. Read it back with
+ * {@link CompactHistoryReader}.
+ *
+ * <pre>
+ * file   = "HCMP" version:1 block* end
+ * block  = count:varint length:varint payload crc32:4
+ * end    = count:varint(0)
+ * record = timeDelta:zigzag type:varint flags:varint value:zigzag * 5
+ * </pre>
+ *
+ * Times are stored as the change of the interval to the previous record, which is 0 for
+ * evenly spaced samples. Values are stored as the difference to the previous record of the
+ * same type. Both restart at every block, so each block decodes on its own.
+ * <p>
+ * {@link HistorySync} writes the records of every sync this way, {@link #export} writes a
+ * time range of a whole {@link HistoryStore}.
+ */
+public class CompactHistoryWriter implements Closeable {
+
+    static final int MAGIC = 0x48434D50;
+    static final int VERSION = 1;
+    static final int MAX_TYPES = 16;
+    public static final int DEFAULT_BLOCK_RECORDS = 512;
+
+    private final DataOutputStream mOut;
+    private final int mBlockRecords;
+    private final CRC32 mCrc = new CRC32();
+    private final BlockState mState = new BlockState();
+
+    private byte[] mBlock = new byte[4096];
+    private int mLength;
+    private int mCount;
+    private long mWritten;
+
+    public CompactHistoryWriter(OutputStream out) throws IOException {
+        this(out, DEFAULT_BLOCK_RECORDS);
+    }
+
+    public CompactHistoryWriter(OutputStream out, int blockRecords) throws IOException {
+        mOut = new DataOutputStream(out);
+        mBlockRecords = blockRecords;
+        mOut.writeInt(MAGIC);
+        mOut.writeByte(VERSION);
+    }
+
+    /**
+     * Writes every record of {@code store} between {@code from} and {@code to}.
+     *
+     * @return the number of records written
+     */
+    public static long export(HistoryStore store, long from, long to, OutputStream out) throws IOException {
+        final CompactHistoryWriter writer = new CompactHistoryWriter(out);
+        final IOException[] error = new IOException[1];
+        store.query(from, to, new HistoryStore.RecordVisitor() {
+            @Override
+            public boolean visit(HistoryRecord record) {
+                try {
+                    writer.write(record);
+                    return true;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        writer.finish();
+        return writer.getWritten();
+    }
+
+    public void write(HistoryRecord record) throws IOException {
+        long interval = mCount == 0 ? record.time : record.time - mState.time;
+        writeZigZag(interval - mState.interval);
+        mState.time = record.time;
+        mState.interval = mCount == 0 ? 0 : interval;
+
+        writeVarint(record.type);
+        writeVarint(record.flags);
+        int[] previous = mState.valuesOf(record.type);
+        for (int i = 0; i < HistoryRecord.VALUE_COUNT; i++) {
+            int value = record.getValue(i);
+            writeZigZag(previous == null ? value : (long) value - previous[i]);
+            if (previous != null) {
+                previous[i] = value;
+            }
+        }
+        mWritten++;
+        if (++mCount == mBlockRecords) {
+            flushBlock();
+        }
+    }
+
+    public long getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * Writes the pending block and the end marker; the stream stays open.
+     */
+    public void finish() throws IOException {
+        flushBlock();
+        writeStreamVarint(0);
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        mOut.close();
+    }
+
+    private void flushBlock() throws IOException {
+        if (mCount == 0) {
+            return;
+        }
+        mCrc.reset();
+        mCrc.update(mBlock, 0, mLength);
+        writeStreamVarint(mCount);
+        writeStreamVarint(mLength);
+        mOut.write(mBlock, 0, mLength);
+        mOut.writeInt((int) mCrc.getValue());
+        mLength = 0;
+        mCount = 0;
+        mState.reset();
+    }
+
+    private void writeZigZag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        if (mLength + 10 > mBlock.length) {
+            byte[] grown = new byte[mBlock.length * 2];
+            System.arraycopy(mBlock, 0, grown, 0, mLength);
+            mBlock = grown;
+        }
+        while ((value & ~0x7FL) != 0) {
+            mBlock[mLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBlock[mLength++] = (byte) value;
+    }
+
+    private void writeStreamVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            mOut.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mOut.writeByte(value);
+    }
+
+    /**
+     * Delta state of the current block, shared with the reader so both sides agree.
+     */
+    static class BlockState {
+        long time;
+        long interval;
+        private final int[][] mValues = new int[MAX_TYPES][];
+
+        /**
+         * @return the previous values of {@code type}, {@code null} for types stored without
+         * deltas
+         */
+        int[] valuesOf(int type) {
+            if (type < 0 || type >= MAX_TYPES) {
+                return null;
+            }
+            if (mValues[type] == null) {
+                mValues[type] = new int[HistoryRecord.VALUE_COUNT];
+            }
+            return mValues[type];
+        }
+
+        void reset() {
+            time = 0;
+            interval = 0;
+            for (int i = 0; i < MAX_TYPES; i++) {
+                if (mValues[i] != null) {
+                    Arrays.fill(mValues[i], 0);
+                }
+            }
+        }
+    }
+}
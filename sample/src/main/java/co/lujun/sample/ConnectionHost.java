@@ -0,0 +1,373 @@
+package co.lujun.sample;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import com.diing.bluetooth.base.State;
+import com.diing.bluetooth.controller.BluetoothController;
+import com.diing.bluetooth.controller.BluetoothLEController;
+import com.diing.bluetooth.interfaces.BluetoothLEListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import diing.com.core.util.Logger;
+
+/**
+ * Owns the controllers for the whole process. They are built once on the application context
+ * and never released on activity transitions, so links, discovered services and subscriptions
+ * survive screen navigation; activities only attach and detach listeners on the
+ * {@link #getEventRouter() router}. While a BLE link is up {@link ConnectionHostService} is kept
+ * started, which makes the process less likely to be reclaimed once the last activity goes
+ * away; see the service for what it does not guarantee.
+ *
+ * Building is split into stages that {@link #prepare()} queues on the {@link BluetoothEventLoop}
+ * without holding up the caller, and logs with their timings. A getter that needs a stage
+ * before the loop got to it runs the stage there and waits for it, so first use only ever
+ * waits for what it needs. The controllers are always built on the loop: the SDK creates its
+ * Handlers on the looper of the thread that builds a controller, so its timers and callbacks
+ * run on the loop no matter which screen came first, and the loop's looper lives as long as
+ * the process.
+ * <p>
+ * Each controller is guarded by its own lock, so using one never holds up the other. Neither
+ * lock is ever taken while holding the other or {@code this}, and {@code this}, which guards
+ * the stages and the service, is never taken while holding either; only the router's own lock
+ * is taken under them.
+ */
+public class ConnectionHost {
+
+    private static final String TAG = "ConnectionHost";
+
+    public static final String STAGE_LE_BUILD = "le.build";
+    public static final String STAGE_LE_WIRE = "le.wire";
+    public static final String STAGE_CLASSIC_BUILD = "classic.build";
+
+    private static class Stage {
+        final String name;
+        final long millis;
+        /** Whether the stage ran on the event loop rather than on first use */
+        final boolean background;
+
+        Stage(String name, long millis, boolean background) {
+            this.name = name;
+            this.millis = millis;
+            this.background = background;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + millis + "ms" + (background ? "" : " (on first use)");
+        }
+    }
+
+    private static ConnectionHost instance;
+
+    private final Context mContext;
+    private final Object mLELock = new Object();
+    private final Object mClassicLock = new Object();
+    private final GattEventRouter mEventRouter = new GattEventRouter();
+    private final ExecutorService mClassicIo = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "classic-io");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private BluetoothLEController mLEController;
+    private BluetoothController mClassicController;
+    private WriteScheduler mWriteScheduler;
+    private RadioAccounting mRadioAccounting;
+    private ScanScheduler mScanScheduler;
+    // Outlives the controllers, Android limits scan starts per app
+    private final ScanScheduler.StartHistory mScanStarts = new ScanScheduler.StartHistory();
+    private boolean mServiceStarted;
+    private boolean mPrepared;
+    private final List<Stage> mStages = new ArrayList<Stage>();
+
+    private final GattEventAdapter mLinkListener = new GattEventAdapter() {
+        @Override
+        public void onBluetoothServiceStateChanged(int state) {
+            if (state == State.STATE_CONNECTED || state == State.STATE_GOT_CHARACTERISTICS) {
+                startService();
+            } else if (state == State.STATE_DISCONNECTED || state == State.STATE_NONE) {
+                stopService();
+            }
+        }
+    };
+
+    public static ConnectionHost shared(Context context) {
+        synchronized (ConnectionHost.class) {
+            if (instance == null) {
+                instance = new ConnectionHost(context.getApplicationContext());
+            }
+        }
+        return instance;
+    }
+
+    private ConnectionHost(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts building the controllers in the background and returns right away. Safe to call
+     * more than once, e.g. from every activity's onCreate.
+     */
+    public synchronized void prepare() {
+        if (mPrepared) {
+            return;
+        }
+        mPrepared = true;
+        // One stage per message, a getter waiting for the first does not wait for the second
+        BluetoothEventLoop.shared().post(new Runnable() {
+            @Override
+            public void run() {
+                buildLE(true);
+            }
+        });
+        BluetoothEventLoop.shared().post(new Runnable() {
+            @Override
+            public void run() {
+                buildClassic(true);
+            }
+        });
+        BluetoothEventLoop.shared().post(new Runnable() {
+            @Override
+            public void run() {
+                List<Stage> stages;
+                synchronized (ConnectionHost.this) {
+                    stages = new ArrayList<Stage>(mStages);
+                }
+                Logger.d(TAG, "Ready: " + stages);
+            }
+        });
+    }
+
+    /**
+     * Activities call this from onCreate. Until the controller is built this waits for the
+     * event loop to build it, after what is already queued there such as {@link #prepare()}.
+     *
+     * @return the BLE controller, built and wired to the router on first use
+     */
+    public BluetoothLEController getLEController() {
+        return buildLE(false);
+    }
+
+    /**
+     * @return the classic controller, built on first use. It takes a single listener, the
+     * activity in front sets its own.
+     */
+    public BluetoothController getClassicController() {
+        return buildClassic(false);
+    }
+
+    private BluetoothLEController buildLE(final boolean background) {
+        synchronized (mLELock) {
+            if (mLEController != null) {
+                return mLEController;
+            }
+        }
+        runOnLoop(new Runnable() {
+            @Override
+            public void run() {
+                buildLEOnLoop(background);
+            }
+        });
+        synchronized (mLELock) {
+            return mLEController;
+        }
+    }
+
+    private void buildLEOnLoop(boolean background) {
+        long start;
+        long built;
+        long end;
+        synchronized (mLELock) {
+            if (mLEController != null) {
+                return;
+            }
+            start = SystemClock.elapsedRealtime();
+            BluetoothLEController controller = BluetoothLEController.shared().build(mContext);
+            built = SystemClock.elapsedRealtime();
+            controller.addListener(BluetoothLEListener.class, mEventRouter);
+            mEventRouter.subscribe(mLinkListener, GattEventRouter.EVENT_CONNECTION_STATE);
+            mWriteScheduler = new WriteScheduler(controller);
+            mEventRouter.subscribe(mWriteScheduler,
+                    GattEventRouter.EVENT_WRITE | GattEventRouter.EVENT_CONNECTION_STATE);
+            mRadioAccounting = new RadioAccounting(controller);
+            mEventRouter.subscribe(mRadioAccounting, GattEventRouter.EVENT_CONNECTION_STATE
+                    | GattEventRouter.EVENT_READ | GattEventRouter.EVENT_WRITE
+                    | GattEventRouter.EVENT_CHANGE);
+            mScanScheduler = new ScanScheduler(controller, mScanStarts);
+            mScanScheduler.setRadioAccounting(mRadioAccounting);
+            end = SystemClock.elapsedRealtime();
+            mLEController = controller;
+        }
+        synchronized (this) {
+            mStages.add(new Stage(STAGE_LE_BUILD, built - start, background));
+            mStages.add(new Stage(STAGE_LE_WIRE, end - built, background));
+        }
+    }
+
+    private BluetoothController buildClassic(final boolean background) {
+        synchronized (mClassicLock) {
+            if (mClassicController != null) {
+                return mClassicController;
+            }
+        }
+        runOnLoop(new Runnable() {
+            @Override
+            public void run() {
+                buildClassicOnLoop(background);
+            }
+        });
+        synchronized (mClassicLock) {
+            return mClassicController;
+        }
+    }
+
+    private void buildClassicOnLoop(boolean background) {
+        long start;
+        long end;
+        synchronized (mClassicLock) {
+            if (mClassicController != null) {
+                return;
+            }
+            start = SystemClock.elapsedRealtime();
+            mClassicController = BluetoothController.getInstance().build(mContext);
+            end = SystemClock.elapsedRealtime();
+        }
+        synchronized (this) {
+            mStages.add(new Stage(STAGE_CLASSIC_BUILD, end - start, background));
+        }
+    }
+
+    /**
+     * Runs {@code runnable} on the event loop, right away if already there, and waits for it.
+     */
+    private static void runOnLoop(final Runnable runnable) {
+        if (BluetoothEventLoop.shared().isOnLoop()) {
+            runnable.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        BluetoothEventLoop.shared().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the thread blocking classic socket writes run on, in the order they were
+     * submitted. Kept off the {@link BluetoothEventLoop} so a stalled socket does not hold up
+     * BLE events.
+     */
+    public Executor getClassicIoExecutor() {
+        return mClassicIo;
+    }
+
+    /**
+     * @return the scheduler all writes to the BLE controller should go through
+     */
+    public WriteScheduler getWriteScheduler() {
+        buildLE(false);
+        synchronized (mLELock) {
+            return mWriteScheduler;
+        }
+    }
+
+    /**
+     * @return radio usage per device and operation since the BLE controller was built;
+     * {@link #release()} drops it along with the controller
+     */
+    public RadioAccounting getRadioAccounting() {
+        buildLE(false);
+        synchronized (mLELock) {
+            return mRadioAccounting;
+        }
+    }
+
+    /**
+     * @return the one scan scheduler of the process; activities start and stop it, and set
+     * their own cycle listener
+     */
+    public ScanScheduler getScanScheduler() {
+        buildLE(false);
+        synchronized (mLELock) {
+            return mScanScheduler;
+        }
+    }
+
+    public GattEventRouter getEventRouter() {
+        return mEventRouter;
+    }
+
+    /**
+     * Releases both controllers, e.g. when the user leaves the app for good.
+     */
+    public void release() {
+        synchronized (mLELock) {
+            if (mLEController != null) {
+                mEventRouter.unsubscribe(mLinkListener);
+                mEventRouter.unsubscribe(mWriteScheduler);
+                mEventRouter.unsubscribe(mRadioAccounting);
+                mRadioAccounting = null;
+                mScanScheduler.stop();
+                mScanScheduler = null;
+                mWriteScheduler.clear();
+                mWriteScheduler = null;
+                mLEController.release();
+                mLEController = null;
+            }
+        }
+        synchronized (mClassicLock) {
+            if (mClassicController != null) {
+                mClassicController.release();
+                mClassicController = null;
+            }
+        }
+        synchronized (this) {
+            mStages.clear();
+            mPrepared = false;
+        }
+        stopService();
+    }
+
+    private synchronized void startService() {
+        if (!mServiceStarted) {
+            mServiceStarted = true;
+            mContext.startService(new Intent(mContext, ConnectionHostService.class));
+        }
+    }
+
+    private synchronized void stopService() {
+        if (mServiceStarted) {
+            mServiceStarted = false;
+            mContext.stopService(new Intent(mContext, ConnectionHostService.class));
+        }
+    }
+}
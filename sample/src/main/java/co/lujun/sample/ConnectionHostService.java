@@ -0,0 +1,26 @@
+package co.lujun.sample;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * Started by {@link ConnectionHost} while a link is up. It holds nothing itself; a started
+ * service ranks the process above cached ones, so the controllers are less likely to be
+ * reclaimed between activities. It is not a foreground service: under memory pressure the
+ * system may still kill the process, and on Android 8 and later it stops background services
+ * shortly after the app leaves the foreground.
+ */
+public class ConnectionHostService extends Service {
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Controllers do not survive the process, so there is nothing to restart with
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,228 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Feeds sync session and write queue activity into a {@link ConnectionPriorityPolicy} and
+ * applies its decisions. Every decision, applied or not, is reported to the registered
+ * {@link OnDecisionListener}s and kept in a short history so the policy can be tuned.
+ * {@link #getPriority()} only moves when the {@link Applier} actually applied a decision.
+ */
+public class ConnectionPriorityGovernor {
+
+    private static final int HISTORY_SIZE = 32;
+
+    /**
+     * Performs the actual {@code BluetoothGatt#requestConnectionPriority} call.
+     */
+    public interface Applier {
+        boolean requestConnectionPriority(int priority);
+    }
+
+    public interface OnDecisionListener {
+        void onPriorityDecision(Decision decision);
+    }
+
+    public static class Decision {
+        public final long time;
+        public final int previous;
+        public final int priority;
+        public final boolean syncActive;
+        public final int pendingWrites;
+        public final boolean applied;
+
+        Decision(long time, int previous, int priority, boolean syncActive, int pendingWrites,
+                 boolean applied) {
+            this.time = time;
+            this.previous = previous;
+            this.priority = priority;
+            this.syncActive = syncActive;
+            this.pendingWrites = pendingWrites;
+            this.applied = applied;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision{" + priorityAsString(previous) + " -> " + priorityAsString(priority)
+                    + ", sync=" + syncActive + ", pending=" + pendingWrites
+                    + ", applied=" + applied + "}";
+        }
+    }
+
+    private final Handler mHandler;
+    private final List<OnDecisionListener> mListeners = new CopyOnWriteArrayList<OnDecisionListener>();
+    private final Decision[] mHistory = new Decision[HISTORY_SIZE];
+    private int mHistoryCount;
+
+    private ConnectionPriorityPolicy mPolicy;
+    private Applier mApplier;
+    private long mIdleCheckMillis = DefaultConnectionPriorityPolicy.DEFAULT_IDLE_MILLIS;
+
+    private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    // Last decision of the policy, applied or not
+    private int mRequested = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private boolean mSyncActive;
+    private int mPendingWrites;
+    private long mLastActivity = SystemClock.elapsedRealtime();
+
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            notifyDecision(evaluateLocked());
+        }
+    };
+
+    public ConnectionPriorityGovernor(ConnectionPriorityPolicy policy, Applier applier) {
+        mHandler = BluetoothEventLoop.shared().getHandler();
+        mPolicy = policy;
+        mApplier = applier;
+    }
+
+    public void setPolicy(ConnectionPriorityPolicy policy) {
+        Decision decision;
+        synchronized (this) {
+            mPolicy = policy;
+            decision = evaluate();
+        }
+        notifyDecision(decision);
+    }
+
+    public synchronized void setApplier(Applier applier) {
+        mApplier = applier;
+    }
+
+    /**
+     * How long the governor waits without activity before asking the policy again, so it can
+     * drop to low power. Should match the idle threshold of the policy in use.
+     */
+    public synchronized void setIdleCheckMillis(long idleCheckMillis) {
+        mIdleCheckMillis = idleCheckMillis;
+    }
+
+    public void addListener(OnDecisionListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(OnDecisionListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return the priority last applied to the link
+     */
+    public synchronized int getPriority() {
+        return mPriority;
+    }
+
+    public void onSyncSessionBegin() {
+        Decision decision;
+        synchronized (this) {
+            mSyncActive = true;
+            decision = touch();
+        }
+        notifyDecision(decision);
+    }
+
+    public void onSyncSessionEnd() {
+        Decision decision;
+        synchronized (this) {
+            mSyncActive = false;
+            decision = touch();
+        }
+        notifyDecision(decision);
+    }
+
+    public void onWriteQueueDepthChanged(int pendingWrites) {
+        Decision decision;
+        synchronized (this) {
+            mPendingWrites = pendingWrites;
+            decision = touch();
+        }
+        notifyDecision(decision);
+    }
+
+    /**
+     * Called when the link goes away, the next connection starts again from balanced.
+     */
+    public synchronized void reset() {
+        mHandler.removeCallbacks(mIdleCheck);
+        mSyncActive = false;
+        mPendingWrites = 0;
+        mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mRequested = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mLastActivity = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the most recent decisions, oldest first
+     */
+    public synchronized List<Decision> getHistory() {
+        int size = Math.min(mHistoryCount, HISTORY_SIZE);
+        List<Decision> result = new ArrayList<Decision>(size);
+        for (int i = mHistoryCount - size; i < mHistoryCount; i++) {
+            result.add(mHistory[i % HISTORY_SIZE]);
+        }
+        return result;
+    }
+
+    private Decision touch() {
+        mLastActivity = SystemClock.elapsedRealtime();
+        return evaluate();
+    }
+
+    private synchronized Decision evaluateLocked() {
+        return evaluate();
+    }
+
+    /**
+     * Must be called holding the monitor; listeners are notified by the caller after
+     * releasing it.
+     *
+     * @return the new decision or {@code null} if the policy did not change its mind
+     */
+    private Decision evaluate() {
+        mHandler.removeCallbacks(mIdleCheck);
+        long now = SystemClock.elapsedRealtime();
+        int next = mPolicy.decide(mRequested, mSyncActive, mPendingWrites, now - mLastActivity);
+        if (next != BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            mHandler.postDelayed(mIdleCheck, mIdleCheckMillis);
+        }
+        if (next == mRequested) {
+            return null;
+        }
+        boolean applied = mApplier != null && mApplier.requestConnectionPriority(next);
+        Decision decision = new Decision(now, mPriority, next, mSyncActive, mPendingWrites, applied);
+        mRequested = next;
+        if (applied) {
+            mPriority = next;
+        }
+        mHistory[mHistoryCount++ % HISTORY_SIZE] = decision;
+        return decision;
+    }
+
+    private void notifyDecision(Decision decision) {
+        if (decision == null) {
+            return;
+        }
+        for (OnDecisionListener listener : mListeners) {
+            listener.onPriorityDecision(decision);
+        }
+    }
+
+    public static String priorityAsString(int priority) {
+        if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            return "HIGH";
+        } else if (priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            return "LOW_POWER";
+        } else if (priority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED) {
+            return "BALANCED";
+        }
+        return "UNKNOWN";
+    }
+}
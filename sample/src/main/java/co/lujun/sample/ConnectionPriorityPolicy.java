@@ -0,0 +1,19 @@
+package co.lujun.sample;
+
+/**
+ * Decides which connection priority the BLE link should run at. Implementations must be
+ * cheap and side-effect free, {@link ConnectionPriorityGovernor} calls them on every
+ * sync session change and every write queue depth change.
+ */
+public interface ConnectionPriorityPolicy {
+
+    /**
+     * @param current      priority currently requested, one of the
+     *                     {@code BluetoothGatt.CONNECTION_PRIORITY_*} constants
+     * @param syncActive   whether a {@code SyncRequestKit} session is running
+     * @param pendingWrites frames waiting to be written
+     * @param idleMillis   time since the last sync or write activity
+     * @return the priority the link should run at
+     */
+    int decide(int current, boolean syncActive, int pendingWrites, long idleMillis);
+}
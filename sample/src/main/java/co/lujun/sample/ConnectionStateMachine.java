@@ -0,0 +1,187 @@
+package co.lujun.sample;
+
+import android.os.SystemClock;
+
+import com.diing.bluetooth.base.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the {@link State} of a connection. A transition checks the current state, moves and
+ * is logged in one critical section, so the log always matches the order the states were
+ * taken in. Reports of the state the machine is already in are dropped, so listeners only see
+ * real changes, and transitions a connection cannot take ({@link #isLegal}) are rejected and
+ * counted. {@link State#STATE_NONE} may move anywhere, so a fresh machine can catch up with a
+ * controller that is already connected. The last {@link #LOG_SIZE} transitions are kept with
+ * their timestamps to measure where connection time goes. {@link #getState()} does not lock.
+ */
+public class ConnectionStateMachine {
+
+    public static final int LOG_SIZE = 64;
+
+    public interface OnStateTransitionListener {
+        void onStateTransition(Transition transition);
+    }
+
+    public static class Transition {
+        public final int from;
+        public final int to;
+        /** {@link SystemClock#elapsedRealtime()} of the transition */
+        public final long time;
+        /** Time spent in {@link #from} */
+        public final long duration;
+
+        Transition(int from, int to, long time, long duration) {
+            this.from = from;
+            this.to = to;
+            this.time = time;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return Utils.transConnStateAsString(from) + " -> " + Utils.transConnStateAsString(to)
+                    + " after " + duration + "ms";
+        }
+    }
+
+    private volatile int mState = State.STATE_NONE;
+    private final List<OnStateTransitionListener> mListeners =
+            new CopyOnWriteArrayList<OnStateTransitionListener>();
+    private final Transition[] mLog = new Transition[LOG_SIZE];
+    private int mLogCount;
+    private long mEnteredAt = SystemClock.elapsedRealtime();
+    private int mRejected;
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return whether a connection can go from {@code from} straight to {@code to}
+     */
+    public static boolean isLegal(int from, int to) {
+        if (from == to) {
+            return false;
+        }
+        if (to == State.STATE_NONE || to == State.STATE_DISCONNECTED
+                || from == State.STATE_NONE) {
+            return true;
+        } else if (from == State.STATE_LISTEN || from == State.STATE_DISCONNECTED) {
+            return to == State.STATE_LISTEN || to == State.STATE_CONNECTING
+                    || to == State.STATE_CONNECTED;
+        } else if (from == State.STATE_CONNECTING) {
+            return to == State.STATE_CONNECTED || to == State.STATE_GOT_CHARACTERISTICS;
+        } else if (from == State.STATE_CONNECTED) {
+            return to == State.STATE_GOT_CHARACTERISTICS;
+        }
+        // STATE_GOT_CHARACTERISTICS only ends with the link
+        return false;
+    }
+
+    public void addListener(OnStateTransitionListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(OnStateTransitionListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Moves to {@code state} from whatever the current state is.
+     *
+     * @return {@code false} if the machine already was in {@code state} or cannot get there
+     * from its current state
+     */
+    public boolean transitionTo(int state) {
+        Transition transition;
+        synchronized (this) {
+            transition = move(mState, state);
+        }
+        return notifyTransition(transition);
+    }
+
+    /**
+     * Moves to {@code state} only if the machine is in {@code expected}.
+     */
+    public boolean compareAndSet(int expected, int state) {
+        Transition transition;
+        synchronized (this) {
+            if (mState != expected) {
+                return false;
+            }
+            transition = move(expected, state);
+        }
+        return notifyTransition(transition);
+    }
+
+    /**
+     * @return the number of transitions rejected by {@link #isLegal}
+     */
+    public synchronized int getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * @return recorded transitions, oldest first
+     */
+    public synchronized List<Transition> getTransitions() {
+        int size = Math.min(mLogCount, LOG_SIZE);
+        List<Transition> result = new ArrayList<Transition>(size);
+        for (int i = mLogCount - size; i < mLogCount; i++) {
+            result.add(mLog[i % LOG_SIZE]);
+        }
+        return result;
+    }
+
+    /**
+     * @return time from the latest transition into {@code from} until the first following
+     * transition into {@code to}, or -1 if the log holds no such pair
+     */
+    public synchronized long measure(int from, int to) {
+        int size = Math.min(mLogCount, LOG_SIZE);
+        long end = -1;
+        for (int i = mLogCount - 1; i >= mLogCount - size; i--) {
+            Transition transition = mLog[i % LOG_SIZE];
+            if (transition.to == to) {
+                end = transition.time;
+            } else if (transition.to == from && end >= 0) {
+                return end - transition.time;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Must be called holding the monitor.
+     *
+     * @return the logged transition or {@code null} if there was none
+     */
+    private Transition move(int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        if (!isLegal(from, to)) {
+            mRejected++;
+            return null;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Transition transition = new Transition(from, to, now, now - mEnteredAt);
+        mState = to;
+        mEnteredAt = now;
+        mLog[mLogCount++ % LOG_SIZE] = transition;
+        return transition;
+    }
+
+    private boolean notifyTransition(Transition transition) {
+        if (transition == null) {
+            return false;
+        }
+        for (OnStateTransitionListener listener : mListeners) {
+            listener.onStateTransition(transition);
+        }
+        return true;
+    }
+}
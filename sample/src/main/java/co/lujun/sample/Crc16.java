@@ -0,0 +1,44 @@
+package co.lujun.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven CRC-16/CCITT-FALSE (poly 0x1021, init 0xFFFF).
+ */
+public class Crc16 {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        return update(0xFFFF, data, offset, length);
+    }
+
+    public static int update(int crc, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Computes over {@code length} bytes starting at the buffer's position without moving it.
+     */
+    public static int compute(ByteBuffer buffer, int length) {
+        int crc = 0xFFFF;
+        int start = buffer.position();
+        for (int i = start; i < start + length; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ buffer.get(i)) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+}
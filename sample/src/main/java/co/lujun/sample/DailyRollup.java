@@ -0,0 +1,245 @@
+package co.lujun.sample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Per day and per hour totals over synced {@link HistoryRecord}s, updated one record at a time
+ * so summary screens never have to walk the raw history. Totals live in flat int arrays
+ * indexed by day (local time) relative to the first day seen, one slot per {@code METRIC_*}.
+ * <p>
+ * Records must be fed exactly once, {@link HistorySync} adds the ones it appends to the
+ * store and saves the rollup next to it. The number of records fed is saved along, so a
+ * rollup that does not cover the whole store can be recognised and recomputed with
+ * {@link #rebuild(HistoryStore)}.
+ */
+public class DailyRollup {
+
+    public static final int METRIC_STEPS = 0;
+    public static final int METRIC_CALORIES = 1;
+    public static final int METRIC_DISTANCE = 2;
+    public static final int METRIC_ACTIVE_SECONDS = 3;
+    public static final int METRIC_SLEEP_SECONDS = 4;
+    public static final int METRIC_COUNT = 5;
+
+    public static final String FILE_NAME = "rollup.bin";
+
+    private static final int FORMAT_VERSION = 2;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    private final TimeZone mTimeZone;
+
+    private long mFirstDay = Long.MIN_VALUE;
+    private int mDayCount;
+    private int[] mDaily = new int[0];
+    private int[] mHourly = new int[0];
+    private long mRecordCount;
+
+    public DailyRollup() {
+        this(TimeZone.getDefault());
+    }
+
+    public DailyRollup(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    public synchronized void add(HistoryRecord record) {
+        mRecordCount++;
+        long local = record.time + mTimeZone.getOffset(record.time);
+        long day = floorDiv(local, DAY_MILLIS);
+        int hour = (int) ((local - day * DAY_MILLIS) / HOUR_MILLIS);
+        int index = ensureDay(day);
+        int dayBase = index * METRIC_COUNT;
+        int hourBase = (index * 24 + hour) * METRIC_COUNT;
+        if (record.type == HistoryRecord.TYPE_SPORT) {
+            addMetric(dayBase, hourBase, METRIC_STEPS, record.getValue(HistoryRecord.VALUE_STEPS));
+            addMetric(dayBase, hourBase, METRIC_CALORIES, record.getValue(HistoryRecord.VALUE_CALORIES));
+            addMetric(dayBase, hourBase, METRIC_DISTANCE, record.getValue(HistoryRecord.VALUE_DISTANCE));
+            addMetric(dayBase, hourBase, METRIC_ACTIVE_SECONDS,
+                    record.getValue(HistoryRecord.VALUE_ACTIVE_SECONDS));
+        } else if (record.type == HistoryRecord.TYPE_SLEEP) {
+            addMetric(dayBase, hourBase, METRIC_SLEEP_SECONDS,
+                    record.getValue(HistoryRecord.VALUE_SLEEP_DURATION));
+        }
+    }
+
+    /**
+     * @return the total of {@code metric} on the local day containing {@code time}
+     */
+    public synchronized int getDay(long time, int metric) {
+        int index = indexOf(time);
+        return index < 0 ? 0 : mDaily[index * METRIC_COUNT + metric];
+    }
+
+    /**
+     * @return the total of {@code metric} in the local hour containing {@code time}
+     */
+    public synchronized int getHour(long time, int metric) {
+        int index = indexOf(time);
+        if (index < 0) {
+            return 0;
+        }
+        long local = time + mTimeZone.getOffset(time);
+        int hour = (int) ((local - floorDiv(local, DAY_MILLIS) * DAY_MILLIS) / HOUR_MILLIS);
+        return mHourly[(index * 24 + hour) * METRIC_COUNT + metric];
+    }
+
+    /**
+     * @return the 24 hourly totals of {@code metric} for the local day containing {@code time}
+     */
+    public synchronized int[] getHours(long time, int metric) {
+        int[] hours = new int[24];
+        int index = indexOf(time);
+        if (index >= 0) {
+            for (int hour = 0; hour < 24; hour++) {
+                hours[hour] = mHourly[(index * 24 + hour) * METRIC_COUNT + metric];
+            }
+        }
+        return hours;
+    }
+
+    /**
+     * @return the number of records fed in, compare with {@link HistoryStore#size()}
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    public synchronized void clear() {
+        mRecordCount = 0;
+        mFirstDay = Long.MIN_VALUE;
+        mDayCount = 0;
+        mDaily = new int[0];
+        mHourly = new int[0];
+    }
+
+    public void rebuild(HistoryStore store) throws IOException {
+        synchronized (this) {
+            clear();
+        }
+        store.query(Long.MIN_VALUE, Long.MAX_VALUE, new HistoryStore.RecordVisitor() {
+            @Override
+            public boolean visit(HistoryRecord record) {
+                add(record);
+                return true;
+            }
+        });
+    }
+
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(mRecordCount);
+            out.writeLong(mFirstDay);
+            out.writeInt(mDayCount);
+            for (int i = 0; i < mDayCount * METRIC_COUNT; i++) {
+                out.writeInt(mDaily[i]);
+            }
+            for (int i = 0; i < mDayCount * 24 * METRIC_COUNT; i++) {
+                out.writeInt(mHourly[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    public synchronized void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readUnsignedByte() != FORMAT_VERSION) {
+                throw new IOException("Unknown rollup format");
+            }
+            long recordCount = in.readLong();
+            long firstDay = in.readLong();
+            int dayCount = in.readInt();
+            int[] daily = new int[dayCount * METRIC_COUNT];
+            int[] hourly = new int[dayCount * 24 * METRIC_COUNT];
+            for (int i = 0; i < daily.length; i++) {
+                daily[i] = in.readInt();
+            }
+            for (int i = 0; i < hourly.length; i++) {
+                hourly[i] = in.readInt();
+            }
+            mRecordCount = recordCount;
+            mFirstDay = firstDay;
+            mDayCount = dayCount;
+            mDaily = daily;
+            mHourly = hourly;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void addMetric(int dayBase, int hourBase, int metric, int value) {
+        mDaily[dayBase + metric] += value;
+        mHourly[hourBase + metric] += value;
+    }
+
+    private int indexOf(long time) {
+        if (mDayCount == 0) {
+            return -1;
+        }
+        long day = floorDiv(time + mTimeZone.getOffset(time), DAY_MILLIS);
+        long index = day - mFirstDay;
+        return index < 0 || index >= mDayCount ? -1 : (int) index;
+    }
+
+    /**
+     * Grows the arrays so {@code day} has slots. Capacity at least doubles either way; when
+     * backfilling, the new slots go in front and count as empty days before the first one.
+     *
+     * @return index of {@code day}
+     */
+    private int ensureDay(long day) {
+        if (mDayCount == 0) {
+            mFirstDay = day;
+        }
+        if (day < mFirstDay) {
+            int needed = (int) (mFirstDay - day) + mDayCount;
+            int capacity = Math.max(needed, capacity() * 2);
+            int shift = capacity - mDayCount;
+            resize(capacity, shift);
+            mFirstDay -= shift;
+            mDayCount = capacity;
+        } else if (day - mFirstDay >= mDayCount) {
+            int needed = (int) (day - mFirstDay) + 1;
+            if (needed > capacity()) {
+                resize(Math.max(needed, capacity() * 2), 0);
+            }
+            mDayCount = needed;
+        }
+        return (int) (day - mFirstDay);
+    }
+
+    private void resize(int capacity, int shift) {
+        int[] daily = new int[capacity * METRIC_COUNT];
+        int[] hourly = new int[capacity * 24 * METRIC_COUNT];
+        System.arraycopy(mDaily, 0, daily, shift * METRIC_COUNT, mDayCount * METRIC_COUNT);
+        System.arraycopy(mHourly, 0, hourly, shift * 24 * METRIC_COUNT,
+                mDayCount * 24 * METRIC_COUNT);
+        mDaily = daily;
+        mHourly = hourly;
+    }
+
+    private static long floorDiv(long value, long divisor) {
+        long result = value / divisor;
+        return value % divisor < 0 ? result - 1 : result;
+    }
+
+    private int capacity() {
+        return mDaily.length / METRIC_COUNT;
+    }
+}
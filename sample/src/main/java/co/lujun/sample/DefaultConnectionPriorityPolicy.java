@@ -0,0 +1,46 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Runs the link at high priority while a sync session is active or the write queue backs up,
+ * falls back to balanced once the work is done and to low power after a quiet period.
+ * The queue thresholds have some hysteresis so the priority does not flap on every frame.
+ */
+public class DefaultConnectionPriorityPolicy implements ConnectionPriorityPolicy {
+
+    public static final int DEFAULT_HIGH_WATERMARK = 8;
+    public static final int DEFAULT_LOW_WATERMARK = 2;
+    public static final long DEFAULT_IDLE_MILLIS = 30 * 1000L;
+
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+    private final long mIdleMillis;
+
+    public DefaultConnectionPriorityPolicy() {
+        this(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK, DEFAULT_IDLE_MILLIS);
+    }
+
+    public DefaultConnectionPriorityPolicy(int highWatermark, int lowWatermark, long idleMillis) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("lowWatermark > highWatermark");
+        }
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+        mIdleMillis = idleMillis;
+    }
+
+    @Override
+    public int decide(int current, boolean syncActive, int pendingWrites, long idleMillis) {
+        if (syncActive || pendingWrites >= mHighWatermark) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+        if (current == BluetoothGatt.CONNECTION_PRIORITY_HIGH && pendingWrites > mLowWatermark) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+        if (idleMillis >= mIdleMillis) {
+            return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+        return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+}
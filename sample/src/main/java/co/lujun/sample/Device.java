@@ -1,50 +1,144 @@
 package co.lujun.sample;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import diing.com.core.response.BatteryInfoResponse;
 import diing.com.core.response.DeviceInfoResponse;
 import diing.com.core.response.SupportFunctionsResponse;
 
 /**
  * Created by leo.chang on 14/02/2017.
+ *
+ * Immutable snapshot of a device's state. Updates produce a new snapshot through the
+ * {@code with*} methods, {@link DeviceStateHolder} publishes them.
  */
 
 public class Device {
     //用來取得BluthtoothDevice 的Key
-    private String mac;
+    private final String mac;
     //Device Info
-    private long deviceId;
-    private int version;
-    private String deviceMode;
-    private String batteryStatus;
-    private int batteryPower;
-    private String bondingState;
-    private boolean isReboot;
-    private boolean isBodhi;
-    private boolean isBeta;
+    private final long deviceId;
+    private final int version;
+    private final String deviceMode;
+    private final String batteryStatus;
+    private final int batteryPower;
+    private final String bondingState;
+    private final boolean isReboot;
+    private final boolean isBodhi;
+    private final boolean isBeta;
 
     //BatteryInfo
-    private String batteryType;
-    private int voltage;
-    private int powerLevel;
-    private long usingTime;
-    private long usingLife;
+    private final String batteryType;
+    private final int voltage;
+    private final int powerLevel;
+    private final long usingTime;
+    private final long usingLife;
+
+    private final SupportFunctionsResponse supportFunctions;
 
-    private int alarmCount;
+    private final int alarmCount;
 
-    private static Device instance;
     public static Device current() {
-        synchronized (Device.class) {
-            if (instance == null) {
-                instance = new Device();
-            }
-        }
-        return instance;
+        return DeviceStateHolder.current().get();
     }
 
     public Device() {
+        this((String) null);
+    }
+
+    public Device(String mac) {
         super();
+        this.mac = mac;
         deviceId = -1;
-        //TODO: Load device info from database
+        version = 0;
+        deviceMode = null;
+        batteryStatus = null;
+        batteryPower = 0;
+        bondingState = null;
+        isReboot = false;
+        isBodhi = false;
+        isBeta = false;
+        batteryType = null;
+        voltage = 0;
+        powerLevel = 0;
+        usingTime = 0;
+        usingLife = 0;
+        supportFunctions = null;
+        alarmCount = 0;
+    }
+
+    private Device(DataInput in) throws IOException {
+        mac = readString(in);
+        deviceId = in.readLong();
+        version = in.readInt();
+        deviceMode = readString(in);
+        batteryStatus = readString(in);
+        batteryPower = in.readInt();
+        bondingState = readString(in);
+        isReboot = in.readBoolean();
+        isBodhi = in.readBoolean();
+        isBeta = in.readBoolean();
+        batteryType = readString(in);
+        voltage = in.readInt();
+        powerLevel = in.readInt();
+        usingTime = in.readLong();
+        usingLife = in.readLong();
+        supportFunctions = null;
+        alarmCount = in.readInt();
+    }
+
+    private Device(Device d, DeviceInfoResponse info, BatteryInfoResponse battery,
+                   SupportFunctionsResponse functions) {
+        this(d, info, battery, functions, false);
+    }
+
+    private Device(Device d, DeviceInfoResponse info, BatteryInfoResponse battery,
+                   SupportFunctionsResponse functions, boolean deviceInfoOnly) {
+        mac = d.mac;
+        if (info != null) {
+            deviceId = info.getDeviceId();
+            version = info.getVersion();
+            deviceMode = info.getDeviceMode().toValue();
+            batteryStatus = info.getBatteryStatus().toValue();
+            batteryPower = info.getBatteryPower();
+            bondingState = info.getBondingState().toValue();
+            isReboot = info.isReboot();
+            isBodhi = info.isBobhi();
+            isBeta = info.isBeta();
+        } else {
+            deviceId = d.deviceId;
+            version = d.version;
+            deviceMode = d.deviceMode;
+            batteryStatus = d.batteryStatus;
+            batteryPower = d.batteryPower;
+            bondingState = d.bondingState;
+            isReboot = d.isReboot;
+            isBodhi = d.isBodhi;
+            isBeta = d.isBeta;
+        }
+        if (battery != null) {
+            batteryType = battery.getBatteryType().toValue();
+            voltage = battery.getVoltage();
+            powerLevel = battery.getPowerLevel();
+            usingTime = battery.getUsingTime();
+            usingLife = battery.getUsingLife();
+        } else if (deviceInfoOnly) {
+            batteryType = null;
+            voltage = 0;
+            powerLevel = 0;
+            usingTime = 0;
+            usingLife = 0;
+        } else {
+            batteryType = d.batteryType;
+            voltage = d.voltage;
+            powerLevel = d.powerLevel;
+            usingTime = d.usingTime;
+            usingLife = d.usingLife;
+        }
+        supportFunctions = functions != null || deviceInfoOnly ? functions : d.supportFunctions;
+        alarmCount = d.alarmCount;
     }
 
     public boolean isEmpty() {
@@ -54,27 +148,159 @@ public class Device {
         return false;
     }
 
+    /**
+     * Reads a snapshot written by {@link #writeTo(DataOutput)}. Support functions are not
+     * persisted and come back as {@code null}.
+     */
+    static Device readFrom(DataInput in) throws IOException {
+        return new Device(in);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        writeString(out, mac);
+        out.writeLong(deviceId);
+        out.writeInt(version);
+        writeString(out, deviceMode);
+        writeString(out, batteryStatus);
+        out.writeInt(batteryPower);
+        writeString(out, bondingState);
+        out.writeBoolean(isReboot);
+        out.writeBoolean(isBodhi);
+        out.writeBoolean(isBeta);
+        writeString(out, batteryType);
+        out.writeInt(voltage);
+        out.writeInt(powerLevel);
+        out.writeLong(usingTime);
+        out.writeLong(usingLife);
+        out.writeInt(alarmCount);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public Device withDeviceInfo(DeviceInfoResponse response) {
+        return new Device(this, response, null, null);
+    }
+
+    public Device withBatteryInfo(BatteryInfoResponse response) {
+        return new Device(this, null, response, null);
+    }
+
+    public Device withSupportFunctions(SupportFunctionsResponse response) {
+        return new Device(this, null, null, response);
+    }
+
+    /**
+     * @return a copy keeping only the device info, e.g. after a firmware change
+     */
+    public Device withDeviceInfoOnly() {
+        return new Device(this, null, null, null, true);
+    }
+
+    /**
+     * @deprecated snapshots are immutable, this updates the holder of the device and leaves
+     * this snapshot as it is. Use {@link DeviceStateHolder#setDeviceInfo} and read the result
+     * through {@link #current()} or the returned snapshot.
+     */
+    @Deprecated
     public void setDeviceInfo(DeviceInfoResponse response) {
-        deviceId = response.getDeviceId();
-        version = response.getVersion();
-        deviceMode = response.getDeviceMode().toValue();
-        batteryStatus = response.getBatteryStatus().toValue();
-        batteryPower = response.getBatteryPower();
-        bondingState = response.getBondingState().toValue();
-        isReboot = response.isReboot();
-        isBodhi = response.isBobhi();
-        isBeta = response.isBeta();
+        holder().setDeviceInfo(response);
     }
 
+    /**
+     * @deprecated see {@link #setDeviceInfo(DeviceInfoResponse)}
+     */
+    @Deprecated
     public void setBatteryInfo(BatteryInfoResponse response) {
-        batteryType = response.getBatteryType().toValue();
-        voltage = response.getVoltage();
-        powerLevel = response.getPowerLevel();
-        usingTime = response.getUsingTime();
-        usingLife = response.getUsingLife();
+        holder().setBatteryInfo(response);
     }
 
+    /**
+     * @deprecated see {@link #setDeviceInfo(DeviceInfoResponse)}
+     */
+    @Deprecated
     public void setSupportFunctions(SupportFunctionsResponse response) {
+        holder().setSupportFunctions(response);
+    }
+
+    private DeviceStateHolder holder() {
+        // Snapshots without a mac stand for whichever device is connected
+        return mac != null ? DeviceStateHolder.forMac(mac) : DeviceStateHolder.connected();
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDeviceMode() {
+        return deviceMode;
+    }
+
+    public String getBatteryStatus() {
+        return batteryStatus;
+    }
+
+    public int getBatteryPower() {
+        return batteryPower;
+    }
+
+    public String getBondingState() {
+        return bondingState;
+    }
+
+    public boolean isReboot() {
+        return isReboot;
+    }
+
+    public boolean isBodhi() {
+        return isBodhi;
+    }
+
+    public boolean isBeta() {
+        return isBeta;
+    }
+
+    public String getBatteryType() {
+        return batteryType;
+    }
+
+    public int getVoltage() {
+        return voltage;
+    }
+
+    public int getPowerLevel() {
+        return powerLevel;
+    }
+
+    public long getUsingTime() {
+        return usingTime;
+    }
+
+    public long getUsingLife() {
+        return usingLife;
+    }
+
+    public SupportFunctionsResponse getSupportFunctions() {
+        return supportFunctions;
+    }
 
+    public int getAlarmCount() {
+        return alarmCount;
     }
 }
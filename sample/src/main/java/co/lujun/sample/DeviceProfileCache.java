@@ -0,0 +1,224 @@
+package co.lujun.sample;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import diing.com.core.util.Logger;
+
+/**
+ * Keeps the last known {@link Device} snapshot per MAC on disk, one small binary file per
+ * device, so the UI can show it right away on the next launch. Each part carries the time it
+ * was fetched, {@link #isDeviceInfoStale} and {@link #isBatteryInfoStale} tell the caller
+ * whether the device has to be asked again. When device info arrives with another firmware
+ * version than the cached one, everything else cached for the device is dropped and has to be
+ * fetched again. {@link #preload} serves cached snapshots before any device connects. One
+ * instance is shared per process, its writes run on a single daemon thread.
+ */
+public class DeviceProfileCache {
+
+    private static final String TAG = "DeviceProfileCache";
+    private static final String DIR = "device_profiles";
+    private static final int FORMAT_VERSION = 1;
+
+    public static final long DEFAULT_DEVICE_INFO_TTL = 24 * 60 * 60 * 1000L;
+    public static final long DEFAULT_BATTERY_INFO_TTL = 15 * 60 * 1000L;
+
+    public static class Entry {
+        public final Device device;
+        public final long deviceInfoTime;
+        public final long batteryInfoTime;
+
+        Entry(Device device, long deviceInfoTime, long batteryInfoTime) {
+            this.device = device;
+            this.deviceInfoTime = deviceInfoTime;
+            this.batteryInfoTime = batteryInfoTime;
+        }
+    }
+
+    private static DeviceProfileCache instance;
+
+    private final File mDir;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "device-profiles");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile long mDeviceInfoTtl = DEFAULT_DEVICE_INFO_TTL;
+    private volatile long mBatteryInfoTtl = DEFAULT_BATTERY_INFO_TTL;
+
+    public static DeviceProfileCache shared(Context context) {
+        synchronized (DeviceProfileCache.class) {
+            if (instance == null) {
+                instance = new DeviceProfileCache(context);
+            }
+        }
+        return instance;
+    }
+
+    private DeviceProfileCache(Context context) {
+        mDir = new File(context.getApplicationContext().getFilesDir(), DIR);
+    }
+
+    public void setTtl(long deviceInfoTtl, long batteryInfoTtl) {
+        mDeviceInfoTtl = deviceInfoTtl;
+        mBatteryInfoTtl = batteryInfoTtl;
+    }
+
+    /**
+     * @return the cached entry or {@code null} if nothing usable is stored for {@code mac}
+     */
+    public synchronized Entry load(String mac) {
+        File file = fileFor(mac);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readUnsignedByte() != FORMAT_VERSION) {
+                return null;
+            }
+            long deviceInfoTime = in.readLong();
+            long batteryInfoTime = in.readLong();
+            return new Entry(Device.readFrom(in), deviceInfoTime, batteryInfoTime);
+        } catch (IOException e) {
+            Logger.e(TAG, "Failed to load profile of " + mac + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Publishes the cached snapshot of every device in {@code macs} whose holder has nothing
+     * yet, so it can be shown before the device connects. Reads from disk, call it off the
+     * main thread.
+     */
+    public void preload(Collection<String> macs) {
+        for (String mac : macs) {
+            final Entry entry = load(mac);
+            if (entry == null) {
+                continue;
+            }
+            DeviceStateHolder.forMac(mac).update(new DeviceStateHolder.Mutation() {
+                @Override
+                public Device apply(Device device) {
+                    // Never replace what a live connection already fetched
+                    return device.isEmpty() ? entry.device : device;
+                }
+            });
+        }
+    }
+
+    public boolean isDeviceInfoStale(Entry entry) {
+        return entry == null || entry.device.isEmpty()
+                || System.currentTimeMillis() - entry.deviceInfoTime > mDeviceInfoTtl;
+    }
+
+    public long getBatteryInfoTtl() {
+        return mBatteryInfoTtl;
+    }
+
+    public boolean isBatteryInfoStale(Entry entry) {
+        return entry == null
+                || System.currentTimeMillis() - entry.batteryInfoTime > mBatteryInfoTtl;
+    }
+
+    /**
+     * Stores the snapshot after fresh device info arrived.
+     */
+    public void onDeviceInfoUpdated(final Device device) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry old = load(device.getMac());
+                if (old != null && old.device.getVersion() != device.getVersion()) {
+                    // New firmware, nothing fetched from the old one is trusted any more
+                    store(new Entry(device.withDeviceInfoOnly(), System.currentTimeMillis(), 0));
+                    return;
+                }
+                store(new Entry(device, System.currentTimeMillis(),
+                        old != null ? old.batteryInfoTime : 0));
+            }
+        });
+    }
+
+    /**
+     * Stores the snapshot after fresh battery info arrived.
+     */
+    public void onBatteryInfoUpdated(final Device device) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry old = load(device.getMac());
+                store(new Entry(device, old != null ? old.deviceInfoTime : 0,
+                        System.currentTimeMillis()));
+            }
+        });
+    }
+
+    public synchronized void remove(String mac) {
+        fileFor(mac).delete();
+    }
+
+    private synchronized void store(Entry entry) {
+        if (entry.device.getMac() == null) {
+            return;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Logger.e(TAG, "Cannot create " + mDir);
+            return;
+        }
+        File file = fileFor(entry.device.getMac());
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(entry.deviceInfoTime);
+            out.writeLong(entry.batteryInfoTime);
+            entry.device.writeTo(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Logger.e(TAG, "Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Failed to store profile: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    private File fileFor(String mac) {
+        return new File(mDir, mac.replace(":", "").toUpperCase());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
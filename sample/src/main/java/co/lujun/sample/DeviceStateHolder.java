@@ -0,0 +1,189 @@
+package co.lujun.sample;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import diing.com.core.response.BatteryInfoResponse;
+import diing.com.core.response.DeviceInfoResponse;
+import diing.com.core.response.SupportFunctionsResponse;
+
+/**
+ * Publishes immutable {@link Device} snapshots through an atomic reference. Reads never block
+ * and always see a consistent snapshot, writers on binder threads swap in a new snapshot with
+ * compare-and-set and observers are told about every change.
+ * <p>
+ * Updates go to the holder of the device they came from, {@link #forMac(String)}. The
+ * {@link #current()} holder mirrors the holder of the device selected with
+ * {@link #setConnected(String)}, so its listeners follow whichever device is connected. The
+ * connected check and the mirroring happen under one lock, so the mirror never shows a device
+ * that is no longer connected or an older snapshot than its holder.
+ */
+public class DeviceStateHolder {
+
+    public interface OnDeviceStateChangedListener {
+        void onDeviceStateChanged(Device previous, Device current);
+    }
+
+    public interface Mutation {
+        Device apply(Device device);
+    }
+
+    private static final DeviceStateHolder sCurrent = new DeviceStateHolder(null);
+    private static final ConcurrentMap<String, DeviceStateHolder> sHolders =
+            new ConcurrentHashMap<String, DeviceStateHolder>();
+
+    // Guards sConnectedMac and what sCurrent mirrors
+    private static final Object sMirrorLock = new Object();
+    private static String sConnectedMac;
+
+    private final String mMac;
+    private final AtomicReference<Device> mState;
+    private final List<OnDeviceStateChangedListener> mListeners =
+            new CopyOnWriteArrayList<OnDeviceStateChangedListener>();
+
+    /**
+     * @return the holder mirroring the currently connected device, do not update it directly
+     */
+    public static DeviceStateHolder current() {
+        return sCurrent;
+    }
+
+    /**
+     * Selects the device {@link #current()} mirrors, {@code null} when disconnected.
+     */
+    public static void setConnected(String mac) {
+        String key = mac == null ? null : mac.toUpperCase();
+        Device previous;
+        Device device;
+        synchronized (sMirrorLock) {
+            sConnectedMac = key;
+            device = key == null ? new Device() : forMac(key).get();
+            previous = sCurrent.mState.getAndSet(device);
+        }
+        if (previous != device) {
+            sCurrent.notifyListeners(previous, device);
+        }
+    }
+
+    /**
+     * @return the holder of the connected device, or {@link #current()} when none is
+     */
+    static DeviceStateHolder connected() {
+        synchronized (sMirrorLock) {
+            return sConnectedMac == null ? sCurrent : forMac(sConnectedMac);
+        }
+    }
+
+    public static DeviceStateHolder forMac(String mac) {
+        String key = mac.toUpperCase();
+        DeviceStateHolder holder = sHolders.get(key);
+        if (holder == null) {
+            DeviceStateHolder created = new DeviceStateHolder(key);
+            holder = sHolders.putIfAbsent(key, created);
+            if (holder == null) {
+                holder = created;
+            }
+        }
+        return holder;
+    }
+
+    private DeviceStateHolder(String mac) {
+        mMac = mac;
+        mState = new AtomicReference<Device>(new Device(mac));
+    }
+
+    public Device get() {
+        return mState.get();
+    }
+
+    public void addListener(OnDeviceStateChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(OnDeviceStateChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Applies {@code mutation} to the latest snapshot, retrying if another thread published in
+     * between. The mutation may therefore run more than once and must not have side effects.
+     */
+    public Device update(Mutation mutation) {
+        Device previous;
+        Device next;
+        do {
+            previous = mState.get();
+            next = mutation.apply(previous);
+        } while (!mState.compareAndSet(previous, next));
+        if (next != previous) {
+            notifyChanged(previous, next);
+        }
+        return next;
+    }
+
+    /**
+     * Replaces the snapshot unconditionally, e.g. when switching to another device.
+     */
+    public void set(Device device) {
+        Device previous = mState.getAndSet(device);
+        if (previous != device) {
+            notifyChanged(previous, device);
+        }
+    }
+
+    private void notifyChanged(Device previous, Device next) {
+        notifyListeners(previous, next);
+        if (mMac == null) {
+            return;
+        }
+        Device mirroredPrevious;
+        Device mirrored;
+        synchronized (sMirrorLock) {
+            if (!mMac.equals(sConnectedMac)) {
+                return;
+            }
+            // The latest snapshot rather than next, a newer update may be mirrored already
+            mirrored = mState.get();
+            mirroredPrevious = sCurrent.mState.getAndSet(mirrored);
+        }
+        if (mirroredPrevious != mirrored) {
+            sCurrent.notifyListeners(mirroredPrevious, mirrored);
+        }
+    }
+
+    private void notifyListeners(Device previous, Device next) {
+        for (OnDeviceStateChangedListener listener : mListeners) {
+            listener.onDeviceStateChanged(previous, next);
+        }
+    }
+
+    public Device setDeviceInfo(final DeviceInfoResponse response) {
+        return update(new Mutation() {
+            @Override
+            public Device apply(Device device) {
+                return device.withDeviceInfo(response);
+            }
+        });
+    }
+
+    public Device setBatteryInfo(final BatteryInfoResponse response) {
+        return update(new Mutation() {
+            @Override
+            public Device apply(Device device) {
+                return device.withBatteryInfo(response);
+            }
+        });
+    }
+
+    public Device setSupportFunctions(final SupportFunctionsResponse response) {
+        return update(new Mutation() {
+            @Override
+            public Device apply(Device device) {
+                return device.withSupportFunctions(response);
+            }
+        });
+    }
+}
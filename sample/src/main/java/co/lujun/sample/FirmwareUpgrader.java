@@ -0,0 +1,246 @@
+package co.lujun.sample;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a firmware image to the device in MTU sized chunks. The image is memory mapped, so
+ * nothing but the chunk being encoded is copied onto the heap.
+ * <p>
+ * The chunk format {@code [offset:4 LE][crc16:2 LE][payload]} is a placeholder: the device
+ * protocol for upgrades is not documented in this SDK, only its final {@code onUpgrade} status,
+ * so nothing in the app starts an upgrade yet. Only offsets the device reports as stored
+ * ({@link #onAcknowledged}) count as confirmed; a chunk the link reports written may still be
+ * lost by the device. At most {@code window} chunks are sent ahead of the last confirmed
+ * offset. The confirmed offset is persisted per device and image, so after a disconnect
+ * {@link #start()} picks up where it left off instead of sending the whole image again.
+ */
+public class FirmwareUpgrader {
+
+    private static final String PREFS = "firmware_upgrade";
+    private static final int HEADER_SIZE = 6;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    public static final int DEFAULT_MTU = 23;
+    public static final int DEFAULT_WINDOW = 16;
+
+    public interface OnUpgradeListener {
+        void onUpgradeProgress(int confirmed, int total);
+
+        void onUpgradeCompleted();
+
+        void onUpgradeFailed(String reason);
+    }
+
+    private final SharedPreferences mPrefs;
+    private final WindowedWriter mWriter;
+    private final File mImage;
+    private final String mMac;
+    private final int mChunkSize;
+    private final int mWindow;
+
+    private OnUpgradeListener mListener;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private int mSize;
+    private long mImageCrc;
+    private int mConfirmed;
+    private int mNextOffset;
+    private boolean mRunning;
+
+    public FirmwareUpgrader(Context context, WindowedWriter writer, File image, String mac) {
+        this(context, writer, image, mac, DEFAULT_MTU, DEFAULT_WINDOW);
+    }
+
+    public FirmwareUpgrader(Context context, WindowedWriter writer, File image, String mac,
+                            int mtu, int window) {
+        if (mtu - ATT_HEADER_SIZE <= HEADER_SIZE) {
+            throw new IllegalArgumentException("MTU too small: " + mtu);
+        }
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        mWriter = writer;
+        mImage = image;
+        mMac = mac;
+        mChunkSize = mtu - ATT_HEADER_SIZE - HEADER_SIZE;
+        mWindow = window;
+    }
+
+    public synchronized void setOnUpgradeListener(OnUpgradeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts or resumes the transfer from the last offset the device confirmed for this image.
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        if (mBuffer == null) {
+            map();
+        }
+        mConfirmed = 0;
+        if (mPrefs.getLong(key("crc"), -1) == mImageCrc) {
+            mConfirmed = Math.min(mPrefs.getInt(key("offset"), 0), mSize);
+        } else {
+            mPrefs.edit().putLong(key("crc"), mImageCrc).putInt(key("offset"), 0).apply();
+        }
+        mNextOffset = mConfirmed;
+        mRunning = true;
+        if (mConfirmed == mSize) {
+            // Empty image, or everything was confirmed right before the last disconnect
+            finish();
+            return;
+        }
+        fill();
+    }
+
+    /**
+     * Stops sending, e.g. on disconnect. The confirmed offset stays persisted.
+     */
+    public synchronized void pause() {
+        mRunning = false;
+        mWriter.cancel();
+    }
+
+    /**
+     * Aborts the upgrade and forgets the persisted offset.
+     */
+    public synchronized void abort() {
+        pause();
+        mPrefs.edit().remove(key("crc")).remove(key("offset")).apply();
+        close();
+    }
+
+    /**
+     * Call with the highest contiguous offset the device reports as stored.
+     */
+    public synchronized void onAcknowledged(int offset) {
+        if (!mRunning || offset <= mConfirmed) {
+            return;
+        }
+        mConfirmed = Math.min(offset, mSize);
+        mPrefs.edit().putInt(key("offset"), mConfirmed).apply();
+        if (mListener != null) {
+            mListener.onUpgradeProgress(mConfirmed, mSize);
+        }
+        if (mConfirmed == mSize) {
+            finish();
+            return;
+        }
+        fill();
+    }
+
+    /**
+     * Call with the status the device reports for the upgrade; a failure aborts it.
+     */
+    public synchronized void onDeviceStatus(boolean ok, String error) {
+        if (ok || !mRunning) {
+            return;
+        }
+        abort();
+        if (mListener != null) {
+            mListener.onUpgradeFailed(error);
+        }
+    }
+
+    /**
+     * Call when the device rejects a chunk (bad CRC or out of order). Everything from the
+     * device's confirmed offset on is sent again.
+     */
+    public synchronized void onRejected(int confirmedOffset) {
+        if (!mRunning) {
+            return;
+        }
+        mWriter.cancel();
+        mConfirmed = Math.max(0, Math.min(confirmedOffset, mSize));
+        mNextOffset = mConfirmed;
+        fill();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    private void fill() {
+        int limit = mConfirmed + mWindow * mChunkSize;
+        while (mNextOffset < mSize && mNextOffset < limit) {
+            int length = Math.min(mChunkSize, mSize - mNextOffset);
+            mWriter.enqueue(encode(mNextOffset, length));
+            mNextOffset += length;
+        }
+    }
+
+    private void finish() {
+        mRunning = false;
+        mPrefs.edit().remove(key("crc")).remove(key("offset")).apply();
+        close();
+        if (mListener != null) {
+            mListener.onUpgradeCompleted();
+        }
+    }
+
+    private byte[] encode(int offset, int length) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        mBuffer.position(offset);
+        int crc = Crc16.compute(mBuffer, length);
+        frame[0] = (byte) offset;
+        frame[1] = (byte) (offset >>> 8);
+        frame[2] = (byte) (offset >>> 16);
+        frame[3] = (byte) (offset >>> 24);
+        frame[4] = (byte) crc;
+        frame[5] = (byte) (crc >>> 8);
+        mBuffer.get(frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    private void map() throws IOException {
+        mFile = new RandomAccessFile(mImage, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Image too large: " + channel.size());
+            }
+            mSize = (int) channel.size();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[8192];
+        mBuffer.position(0);
+        while (mBuffer.hasRemaining()) {
+            int length = Math.min(block.length, mBuffer.remaining());
+            mBuffer.get(block, 0, length);
+            crc.update(block, 0, length);
+        }
+        mImageCrc = crc.getValue();
+    }
+
+    private void close() {
+        mBuffer = null;
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException ignored) {
+            }
+            mFile = null;
+        }
+    }
+
+    private String key(String name) {
+        return mMac + "_" + name;
+    }
+}
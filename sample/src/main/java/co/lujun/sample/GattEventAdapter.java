@@ -0,0 +1,64 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import com.diing.bluetooth.interfaces.BluetoothLEListener;
+
+import java.util.List;
+
+/**
+ * Empty {@link BluetoothLEListener} for {@link GattEventRouter} subscribers that only care
+ * about a few callbacks.
+ */
+public abstract class GattEventAdapter implements BluetoothLEListener {
+
+    @Override
+    public void onBond() {
+    }
+
+    @Override
+    public void onUnBond() {
+    }
+
+    @Override
+    public void onActionStateChanged(int preState, int state) {
+    }
+
+    @Override
+    public void onActionDiscoveryStateChanged(String discoveryState) {
+    }
+
+    @Override
+    public void onActionScanModeChanged(int preScanMode, int scanMode) {
+    }
+
+    @Override
+    public void onBluetoothServiceStateChanged(int state) {
+    }
+
+    @Override
+    public void onActionDeviceFound(BluetoothDevice device, short rssi) {
+    }
+
+    @Override
+    public void onDiscoveringCharacteristics(List<BluetoothGattCharacteristic> characteristics) {
+    }
+
+    @Override
+    public void onDiscoveringServices(List<BluetoothGattService> services) {
+    }
+
+    @Override
+    public void onReadData(BluetoothGattCharacteristic characteristic) {
+    }
+
+    @Override
+    public void onWriteData(BluetoothGattCharacteristic characteristic) {
+    }
+
+    @Override
+    public void onDataChanged(BluetoothGattCharacteristic characteristic) {
+    }
+}
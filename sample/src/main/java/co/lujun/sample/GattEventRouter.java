@@ -0,0 +1,230 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import com.diing.bluetooth.interfaces.BluetoothLEListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registered once as the controller's {@link BluetoothLEListener}, fans events out to
+ * subscribers that asked for specific event types and, for read, write and change events,
+ * specific characteristics. The routing table is rebuilt on every (un)subscribe and swapped in
+ * atomically, dispatch is a lookup without locking or per-subscriber filtering. Characteristic
+ * uuids are checked and lowercased with {@link Utils#normalizeUuid} when subscribing, so a
+ * filter that could never match fails right there.
+ */
+public class GattEventRouter implements BluetoothLEListener {
+
+    public static final int EVENT_BOND = 1;
+    public static final int EVENT_ADAPTER_STATE = 1 << 1;
+    public static final int EVENT_SCAN = 1 << 2;
+    public static final int EVENT_CONNECTION_STATE = 1 << 3;
+    public static final int EVENT_DISCOVERY = 1 << 4;
+    public static final int EVENT_READ = 1 << 5;
+    public static final int EVENT_WRITE = 1 << 6;
+    public static final int EVENT_CHANGE = 1 << 7;
+    public static final int EVENT_ALL = (1 << 8) - 1;
+
+    private static final int EVENT_TYPES = 8;
+    private static final int FIRST_CHARACTERISTIC_EVENT = 5;
+    private static final BluetoothLEListener[] NONE = new BluetoothLEListener[0];
+
+    private static class Subscription {
+        final BluetoothLEListener listener;
+        final int events;
+        final String uuid;
+
+        Subscription(BluetoothLEListener listener, int events, String uuid) {
+            this.listener = listener;
+            this.events = events;
+            this.uuid = uuid;
+        }
+    }
+
+    /**
+     * Immutable routing table. {@code any[type]} holds subscribers of an event type regardless
+     * of characteristic, {@code byUuid[type]} the full list for a characteristic that has bound
+     * subscribers, i.e. those plus {@code any[type]}.
+     */
+    private static class Table {
+        final BluetoothLEListener[][] any = new BluetoothLEListener[EVENT_TYPES][];
+        final List<Map<String, BluetoothLEListener[]>> byUuid =
+                new ArrayList<Map<String, BluetoothLEListener[]>>(EVENT_TYPES);
+    }
+
+    private final List<Subscription> mSubscriptions = new ArrayList<Subscription>();
+    private volatile Table mTable = build(new ArrayList<Subscription>());
+
+    /**
+     * @param events one or more {@code EVENT_*} flags
+     */
+    public void subscribe(BluetoothLEListener listener, int events) {
+        subscribe(listener, events, null);
+    }
+
+    /**
+     * @param uuid only deliver read, write and change events of this characteristic,
+     *             {@code null} for all characteristics
+     * @throws IllegalArgumentException if {@code uuid} is not a characteristic uuid
+     */
+    public synchronized void subscribe(BluetoothLEListener listener, int events, String uuid) {
+        mSubscriptions.add(new Subscription(listener, events,
+                uuid == null ? null : Utils.normalizeUuid(uuid)));
+        mTable = build(mSubscriptions);
+    }
+
+    public synchronized void unsubscribe(BluetoothLEListener listener) {
+        for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+            if (mSubscriptions.get(i).listener == listener) {
+                mSubscriptions.remove(i);
+            }
+        }
+        mTable = build(mSubscriptions);
+    }
+
+    private static Table build(List<Subscription> subscriptions) {
+        Table table = new Table();
+        for (int type = 0; type < EVENT_TYPES; type++) {
+            List<BluetoothLEListener> any = new ArrayList<BluetoothLEListener>();
+            Map<String, List<BluetoothLEListener>> byUuid = new HashMap<String, List<BluetoothLEListener>>();
+            for (Subscription subscription : subscriptions) {
+                if ((subscription.events & (1 << type)) == 0) {
+                    continue;
+                }
+                if (subscription.uuid == null || type < FIRST_CHARACTERISTIC_EVENT) {
+                    any.add(subscription.listener);
+                } else {
+                    List<BluetoothLEListener> list = byUuid.get(subscription.uuid);
+                    if (list == null) {
+                        list = new ArrayList<BluetoothLEListener>();
+                        byUuid.put(subscription.uuid, list);
+                    }
+                    list.add(subscription.listener);
+                }
+            }
+            table.any[type] = any.toArray(NONE);
+            Map<String, BluetoothLEListener[]> map = new HashMap<String, BluetoothLEListener[]>();
+            for (Map.Entry<String, List<BluetoothLEListener>> entry : byUuid.entrySet()) {
+                List<BluetoothLEListener> all = new ArrayList<BluetoothLEListener>(any);
+                all.addAll(entry.getValue());
+                map.put(entry.getKey(), all.toArray(NONE));
+            }
+            table.byUuid.add(map);
+        }
+        return table;
+    }
+
+    BluetoothLEListener[] route(int event) {
+        return mTable.any[Integer.numberOfTrailingZeros(event)];
+    }
+
+    /**
+     * @param uuid lowercase, as {@link java.util.UUID#toString()} gives it
+     */
+    BluetoothLEListener[] route(int event, String uuid) {
+        Table table = mTable;
+        int type = Integer.numberOfTrailingZeros(event);
+        Map<String, BluetoothLEListener[]> byUuid = table.byUuid.get(type);
+        if (!byUuid.isEmpty()) {
+            BluetoothLEListener[] bound = byUuid.get(uuid);
+            if (bound != null) {
+                return bound;
+            }
+        }
+        return table.any[type];
+    }
+
+    private BluetoothLEListener[] route(int event, BluetoothGattCharacteristic characteristic) {
+        return route(event, characteristic.getUuid().toString());
+    }
+
+    @Override
+    public void onBond() {
+        for (BluetoothLEListener listener : route(EVENT_BOND)) {
+            listener.onBond();
+        }
+    }
+
+    @Override
+    public void onUnBond() {
+        for (BluetoothLEListener listener : route(EVENT_BOND)) {
+            listener.onUnBond();
+        }
+    }
+
+    @Override
+    public void onActionStateChanged(int preState, int state) {
+        for (BluetoothLEListener listener : route(EVENT_ADAPTER_STATE)) {
+            listener.onActionStateChanged(preState, state);
+        }
+    }
+
+    @Override
+    public void onActionScanModeChanged(int preScanMode, int scanMode) {
+        for (BluetoothLEListener listener : route(EVENT_ADAPTER_STATE)) {
+            listener.onActionScanModeChanged(preScanMode, scanMode);
+        }
+    }
+
+    @Override
+    public void onActionDiscoveryStateChanged(String discoveryState) {
+        for (BluetoothLEListener listener : route(EVENT_SCAN)) {
+            listener.onActionDiscoveryStateChanged(discoveryState);
+        }
+    }
+
+    @Override
+    public void onActionDeviceFound(BluetoothDevice device, short rssi) {
+        for (BluetoothLEListener listener : route(EVENT_SCAN)) {
+            listener.onActionDeviceFound(device, rssi);
+        }
+    }
+
+    @Override
+    public void onBluetoothServiceStateChanged(int state) {
+        for (BluetoothLEListener listener : route(EVENT_CONNECTION_STATE)) {
+            listener.onBluetoothServiceStateChanged(state);
+        }
+    }
+
+    @Override
+    public void onDiscoveringServices(List<BluetoothGattService> services) {
+        for (BluetoothLEListener listener : route(EVENT_DISCOVERY)) {
+            listener.onDiscoveringServices(services);
+        }
+    }
+
+    @Override
+    public void onDiscoveringCharacteristics(List<BluetoothGattCharacteristic> characteristics) {
+        for (BluetoothLEListener listener : route(EVENT_DISCOVERY)) {
+            listener.onDiscoveringCharacteristics(characteristics);
+        }
+    }
+
+    @Override
+    public void onReadData(BluetoothGattCharacteristic characteristic) {
+        for (BluetoothLEListener listener : route(EVENT_READ, characteristic)) {
+            listener.onReadData(characteristic);
+        }
+    }
+
+    @Override
+    public void onWriteData(BluetoothGattCharacteristic characteristic) {
+        for (BluetoothLEListener listener : route(EVENT_WRITE, characteristic)) {
+            listener.onWriteData(characteristic);
+        }
+    }
+
+    @Override
+    public void onDataChanged(BluetoothGattCharacteristic characteristic) {
+        for (BluetoothLEListener listener : route(EVENT_CHANGE, characteristic)) {
+            listener.onDataChanged(characteristic);
+        }
+    }
+}
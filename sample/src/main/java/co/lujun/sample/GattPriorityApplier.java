@@ -0,0 +1,78 @@
+package co.lujun.sample;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import com.diing.bluetooth.controller.BluetoothLEController;
+
+import java.lang.reflect.Field;
+
+import diing.com.core.util.Logger;
+
+/**
+ * {@link ConnectionPriorityGovernor.Applier} backed by the {@link BluetoothGatt} of the LE
+ * controller. The controller does not expose its gatt, so the field is looked up once by
+ * type; {@code requestConnectionPriority} needs API 21 and below that nothing is applied.
+ */
+public class GattPriorityApplier implements ConnectionPriorityGovernor.Applier {
+
+    private static final String TAG = "GattPriorityApplier";
+
+    private final BluetoothLEController mController;
+    private Field mGattField;
+    private boolean mLookedUp;
+
+    public GattPriorityApplier(BluetoothLEController controller) {
+        mController = controller;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        BluetoothGatt gatt = getGatt();
+        if (gatt == null) {
+            return false;
+        }
+        return request(gatt, priority);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean request(BluetoothGatt gatt, int priority) {
+        return gatt.requestConnectionPriority(priority);
+    }
+
+    private synchronized BluetoothGatt getGatt() {
+        if (!mLookedUp) {
+            mLookedUp = true;
+            mGattField = findGattField(mController.getClass());
+            if (mGattField == null) {
+                Logger.e(TAG, "No BluetoothGatt field in " + mController.getClass().getName());
+            }
+        }
+        if (mGattField == null) {
+            return null;
+        }
+        try {
+            // null while disconnected
+            return (BluetoothGatt) mGattField.get(mController);
+        } catch (IllegalAccessException e) {
+            Logger.e(TAG, e.getMessage());
+            return null;
+        }
+    }
+
+    private static Field findGattField(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (BluetoothGatt.class.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+}
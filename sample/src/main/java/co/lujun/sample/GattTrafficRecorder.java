@@ -0,0 +1,198 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import diing.com.core.util.Logger;
+
+/**
+ * Opt-in capture of GATT traffic into a compact binary trace that {@code GattTrafficReplayer}
+ * in the test sources plays back on a plain JVM. Subscribe it to a {@link GattEventRouter}.
+ * <p>
+ * Callbacks only copy the event into a preallocated ring buffer, a background thread moves
+ * the buffer to disk and also closes the file, so {@link #close()} never waits for the disk.
+ * When the writer cannot keep up events are dropped and counted rather than slowing the
+ * callback thread down.
+ * <p>
+ * Trace layout: {@code "GTRC"}, version byte, then records of
+ * {@code [type:1][channel:1][length:2][nanos:8][payload]}, big endian. A characteristic's UUID
+ * is declared once in a {@link #TYPE_CHANNEL} record before its first use.
+ */
+public class GattTrafficRecorder extends GattEventAdapter {
+
+    private static final String TAG = "GattTrafficRecorder";
+
+    static final byte[] MAGIC = {'G', 'T', 'R', 'C'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_NOTIFY = 2;
+    public static final int TYPE_READ = 3;
+    public static final int TYPE_STATE = 4;
+    public static final int TYPE_CHANNEL = 5;
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final byte[] mRing;
+    private final OutputStream mOut;
+    private final Thread mWriter;
+    private final Map<String, Integer> mChannels = new HashMap<String, Integer>();
+    private final long mStartNanos = System.nanoTime();
+
+    private long mHead;
+    private long mTail;
+    private long mDropped;
+    private volatile boolean mClosed;
+
+    public GattTrafficRecorder(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public GattTrafficRecorder(File file, int bufferSize) throws IOException {
+        mRing = new byte[bufferSize];
+        mOut = new BufferedOutputStream(new FileOutputStream(file), 16 * 1024);
+        mOut.write(MAGIC);
+        mOut.write(VERSION);
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "gatt-recorder");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    @Override
+    public void onWriteData(BluetoothGattCharacteristic characteristic) {
+        record(TYPE_WRITE, characteristic.getUuid().toString(), characteristic.getValue());
+    }
+
+    @Override
+    public void onDataChanged(BluetoothGattCharacteristic characteristic) {
+        record(TYPE_NOTIFY, characteristic.getUuid().toString(), characteristic.getValue());
+    }
+
+    @Override
+    public void onReadData(BluetoothGattCharacteristic characteristic) {
+        record(TYPE_READ, characteristic.getUuid().toString(), characteristic.getValue());
+    }
+
+    @Override
+    public void onBluetoothServiceStateChanged(int state) {
+        record(TYPE_STATE, null, new byte[]{(byte) state});
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Stops recording and returns right away, the writer thread flushes what is buffered and
+     * closes the trace.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return whether the trace was flushed and closed within {@code millis}
+     */
+    boolean awaitClosed(long millis) throws InterruptedException {
+        mWriter.join(millis);
+        return !mWriter.isAlive();
+    }
+
+    synchronized void record(int type, String uuid, byte[] payload) {
+        if (mClosed) {
+            return;
+        }
+        payload = payload == null ? new byte[0] : payload;
+        long nanos = System.nanoTime() - mStartNanos;
+        int channel = 0;
+        if (uuid != null) {
+            Integer known = mChannels.get(uuid);
+            if (known == null) {
+                if (mChannels.size() == 255) {
+                    mDropped++;
+                    return;
+                }
+                known = mChannels.size() + 1;
+                byte[] name = uuid.getBytes();
+                if (!put(TYPE_CHANNEL, known, nanos, name)) {
+                    mDropped++;
+                    return;
+                }
+                mChannels.put(uuid, known);
+            }
+            channel = known;
+        }
+        if (!put(type, channel, nanos, payload)) {
+            mDropped++;
+            return;
+        }
+        notifyAll();
+    }
+
+    private boolean put(int type, int channel, long nanos, byte[] payload) {
+        int size = HEADER_SIZE + payload.length;
+        if (size > mRing.length - (mHead - mTail)) {
+            return false;
+        }
+        putByte(type);
+        putByte(channel);
+        putByte(payload.length >>> 8);
+        putByte(payload.length);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            putByte((int) (nanos >>> shift));
+        }
+        for (byte b : payload) {
+            putByte(b);
+        }
+        return true;
+    }
+
+    private void putByte(int value) {
+        mRing[(int) (mHead++ % mRing.length)] = (byte) value;
+    }
+
+    private void drainLoop() {
+        byte[] chunk = new byte[8 * 1024];
+        try {
+            while (true) {
+                int length;
+                synchronized (this) {
+                    while (mHead == mTail && !mClosed) {
+                        wait();
+                    }
+                    if (mHead == mTail) {
+                        break;
+                    }
+                    length = (int) Math.min(chunk.length, mHead - mTail);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = mRing[(int) (mTail++ % mRing.length)];
+                    }
+                }
+                mOut.write(chunk, 0, length);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Trace write failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
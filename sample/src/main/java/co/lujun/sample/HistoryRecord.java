@@ -0,0 +1,79 @@
+package co.lujun.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One decoded history sample in the fixed 32 byte layout used by {@link HistoryStore}:
+ * {@code [time:8][type:2][flags:2][value0..value4:4 each]}. The meaning of the values depends
+ * on the type, see the {@code TYPE_*} constants.
+ */
+public class HistoryRecord {
+
+    public static final int SIZE = 32;
+    public static final int VALUE_COUNT = 5;
+
+    /** values: steps, calories, distance (m), active seconds, unused */
+    public static final int TYPE_SPORT = 1;
+    /** values: sleep state, duration (s), unused, unused, unused */
+    public static final int TYPE_SLEEP = 2;
+    /** values: heart rate (bpm), unused, unused, unused, unused */
+    public static final int TYPE_HEART_RATE = 3;
+
+    public static final int VALUE_STEPS = 0;
+    public static final int VALUE_CALORIES = 1;
+    public static final int VALUE_DISTANCE = 2;
+    public static final int VALUE_ACTIVE_SECONDS = 3;
+    public static final int VALUE_SLEEP_STATE = 0;
+    public static final int VALUE_SLEEP_DURATION = 1;
+
+    public final long time;
+    public final int type;
+    public final int flags;
+    private final int[] values;
+
+    public HistoryRecord(long time, int type, int flags, int... values) {
+        if (values.length > VALUE_COUNT) {
+            throw new IllegalArgumentException("At most " + VALUE_COUNT + " values");
+        }
+        this.time = time;
+        this.type = type;
+        this.flags = flags;
+        this.values = new int[VALUE_COUNT];
+        System.arraycopy(values, 0, this.values, 0, values.length);
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(time);
+        buffer.putShort((short) type);
+        buffer.putShort((short) flags);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+    }
+
+    static HistoryRecord readFrom(ByteBuffer buffer) {
+        long time = buffer.getLong();
+        int type = buffer.getShort() & 0xFFFF;
+        int flags = buffer.getShort() & 0xFFFF;
+        int[] values = new int[VALUE_COUNT];
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            values[i] = buffer.getInt();
+        }
+        return new HistoryRecord(time, type, flags, values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("HistoryRecord{time=").append(time)
+                .append(", type=").append(type).append(", flags=").append(flags)
+                .append(", values=[");
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            builder.append(i == 0 ? "" : ", ").append(values[i]);
+        }
+        return builder.append("]}").toString();
+    }
+}
@@ -0,0 +1,330 @@
+package co.lujun.sample;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only store for synced history of one device. Records are written in the fixed width
+ * {@link HistoryRecord} layout into segment files of up to {@link #SEGMENT_RECORDS} records
+ * each. Every segment keeps its time range in its header, which doubles as a coarse time
+ * index: opening the store only reads the headers, range queries only touch segments that
+ * overlap and binary search inside a segment as long as its records were appended in time
+ * order.
+ * <p>
+ * Segments are memory mapped read-only when a query needs them, just as far as their records
+ * go, and at most {@link #MAX_OPEN_SEGMENTS} stay open. Appends go through the file channel of
+ * the last segment, a batch at a time.
+ */
+public class HistoryStore {
+
+    public static final int SEGMENT_RECORDS = 32 * 1024;
+    public static final int MAX_OPEN_SEGMENTS = 4;
+
+    private static final int MAGIC = 0x44484953;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_COUNT = 8;
+    private static final int OFFSET_MIN_TIME = 12;
+    private static final int OFFSET_MAX_TIME = 20;
+    private static final int OFFSET_SORTED = 28;
+    private static final String SUFFIX = ".seg";
+
+    public interface RecordVisitor {
+        /**
+         * @return {@code false} to stop the query
+         */
+        boolean visit(HistoryRecord record);
+    }
+
+    private static class Segment {
+        final int index;
+        final File path;
+        int count;
+        long minTime;
+        long maxTime;
+        boolean sorted;
+        // Open while in mOpen
+        RandomAccessFile file;
+        // Read-only view of the first mappedCount records, remapped once more are appended
+        MappedByteBuffer buffer;
+        int mappedCount;
+
+        Segment(int index, File path) {
+            this.index = index;
+            this.path = path;
+        }
+
+        long timeAt(int position) {
+            return buffer.getLong(HEADER_SIZE + position * HistoryRecord.SIZE);
+        }
+    }
+
+    private final File mDir;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    // Open segments, least recently used first
+    private final LinkedHashMap<Integer, Segment> mOpen = new LinkedHashMap<Integer, Segment>(
+            MAX_OPEN_SEGMENTS + 1, 0.75f, true);
+
+    public HistoryStore(File dir) throws IOException {
+        mDir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(names);
+        for (String name : names) {
+            int index = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = new Segment(index, new File(dir, name));
+            readHeader(segment);
+            mSegments.add(segment);
+        }
+    }
+
+    public synchronized void append(HistoryRecord record) throws IOException {
+        appendAll(Collections.singletonList(record));
+    }
+
+    public synchronized void appendAll(List<HistoryRecord> records) throws IOException {
+        int next = 0;
+        while (next < records.size()) {
+            Segment segment = writableSegment();
+            int batch = Math.min(records.size() - next, SEGMENT_RECORDS - segment.count);
+            ByteBuffer buffer = ByteBuffer.allocate(batch * HistoryRecord.SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int count = segment.count;
+            for (int i = next; i < next + batch; i++) {
+                HistoryRecord record = records.get(i);
+                record.writeTo(buffer);
+                if (count == 0) {
+                    segment.minTime = record.time;
+                    segment.maxTime = record.time;
+                } else {
+                    if (record.time < segment.maxTime) {
+                        segment.sorted = false;
+                    }
+                    segment.minTime = Math.min(segment.minTime, record.time);
+                    segment.maxTime = Math.max(segment.maxTime, record.time);
+                }
+                count++;
+            }
+            buffer.flip();
+            FileChannel channel = open(segment).getChannel();
+            long position = HEADER_SIZE + (long) segment.count * HistoryRecord.SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            segment.count = count;
+            writeHeader(segment);
+            next += batch;
+        }
+    }
+
+    /**
+     * Visits records with {@code from <= time < to}. Records of sorted segments are visited in
+     * time order, overlapping unsorted segments in append order.
+     */
+    public synchronized void query(long from, long to, RecordVisitor visitor) throws IOException {
+        for (Segment segment : mSegments) {
+            if (segment.count == 0 || segment.maxTime < from || segment.minTime >= to) {
+                continue;
+            }
+            map(segment);
+            int start = segment.sorted ? lowerBound(segment, from) : 0;
+            for (int i = start; i < segment.mappedCount; i++) {
+                long time = segment.timeAt(i);
+                if (time >= to) {
+                    if (segment.sorted) {
+                        break;
+                    }
+                    continue;
+                }
+                if (time < from) {
+                    continue;
+                }
+                segment.buffer.position(HEADER_SIZE + i * HistoryRecord.SIZE);
+                if (!visitor.visit(HistoryRecord.readFrom(segment.buffer))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public List<HistoryRecord> query(long from, long to) throws IOException {
+        final List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+        query(from, to, new RecordVisitor() {
+            @Override
+            public boolean visit(HistoryRecord record) {
+                result.add(record);
+                return true;
+            }
+        });
+        return result;
+    }
+
+    public synchronized long size() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * @return time of the newest record or {@code Long.MIN_VALUE} if the store is empty
+     */
+    public synchronized long getLatestTime() {
+        long latest = Long.MIN_VALUE;
+        for (Segment segment : mSegments) {
+            if (segment.count > 0) {
+                latest = Math.max(latest, segment.maxTime);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Forces written records to disk.
+     */
+    public synchronized void flush() throws IOException {
+        for (Segment segment : mOpen.values()) {
+            segment.file.getChannel().force(false);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : mOpen.values()) {
+            release(segment);
+        }
+        mOpen.clear();
+        mSegments.clear();
+    }
+
+    private Segment writableSegment() throws IOException {
+        Segment last = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (last == null || last.count == SEGMENT_RECORDS) {
+            if (last != null && last.file != null) {
+                last.file.getChannel().force(false);
+            }
+            int index = last == null ? 0 : last.index + 1;
+            last = new Segment(index, new File(mDir, String.format("%08d", index) + SUFFIX));
+            last.sorted = true;
+            mSegments.add(last);
+            writeHeader(last);
+        }
+        return last;
+    }
+
+    /**
+     * @return the open file of {@code segment}, closing the least recently used one if too
+     * many are open
+     */
+    private RandomAccessFile open(Segment segment) throws IOException {
+        if (mOpen.get(segment.index) != null) {
+            return segment.file;
+        }
+        segment.file = new RandomAccessFile(segment.path, "rw");
+        mOpen.put(segment.index, segment);
+        if (mOpen.size() > MAX_OPEN_SEGMENTS) {
+            Iterator<Segment> eldest = mOpen.values().iterator();
+            Segment evicted = eldest.next();
+            eldest.remove();
+            release(evicted);
+        }
+        return segment.file;
+    }
+
+    private void map(Segment segment) throws IOException {
+        FileChannel channel = open(segment).getChannel();
+        if (segment.buffer != null && segment.mappedCount == segment.count) {
+            return;
+        }
+        segment.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                HEADER_SIZE + (long) segment.count * HistoryRecord.SIZE);
+        segment.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        segment.mappedCount = segment.count;
+    }
+
+    private static void release(Segment segment) throws IOException {
+        // The mapping goes away with the buffer, closing the file does not affect it
+        segment.buffer = null;
+        segment.mappedCount = 0;
+        if (segment.file != null) {
+            segment.file.close();
+            segment.file = null;
+        }
+    }
+
+    /**
+     * Reads the header without keeping the file open. A segment with a broken header counts
+     * as empty and is written over if it is the last one.
+     */
+    private void readHeader(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        RandomAccessFile file = new RandomAccessFile(segment.path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+        } finally {
+            file.close();
+        }
+        long available = (segment.path.length() - HEADER_SIZE) / HistoryRecord.SIZE;
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            segment.sorted = true;
+            return;
+        }
+        // Records past the end of the file never made it to disk
+        segment.count = (int) Math.max(0, Math.min(header.getInt(OFFSET_COUNT), available));
+        segment.minTime = header.getLong(OFFSET_MIN_TIME);
+        segment.maxTime = header.getLong(OFFSET_MAX_TIME);
+        segment.sorted = header.get(OFFSET_SORTED) != 0;
+    }
+
+    private void writeHeader(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, 1);
+        header.putInt(OFFSET_COUNT, segment.count);
+        header.putLong(OFFSET_MIN_TIME, segment.minTime);
+        header.putLong(OFFSET_MAX_TIME, segment.maxTime);
+        header.put(OFFSET_SORTED, (byte) (segment.sorted ? 1 : 0));
+        // Written after the records, a record only becomes visible once it is on file
+        FileChannel channel = open(segment).getChannel();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    private static int lowerBound(Segment segment, long time) {
+        int low = 0;
+        int high = segment.mappedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segment.timeAt(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,238 @@
+package co.lujun.sample;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import diing.com.core.enumeration.CommandKit;
+import diing.com.core.util.Logger;
+
+/**
+ * Takes the packets of a sport sync as they are handed to {@code CommandController}, decodes
+ * them with {@link SportRecordDecoder} once the sync ends, on several cores for large
+ * backlogs ({@link ParallelSyncDecoder}), and appends the records to the
+ * {@link HistoryStore} of the device, keeping its {@link DailyRollup} up to date with them.
+ * The new records of every sync are also written to the device's {@link #OUTBOX} in the
+ * {@link CompactHistoryWriter} format, one file per sync, for the uploader to send and delete.
+ * Only records past the {@link SyncCheckpoint} of the
+ * device and sync kind are stored, and the checkpoint moves past them once they are on disk.
+ * A sync cut off by a lost link keeps everything received up to then
+ * ({@link #interrupt()}), so the next sync only adds what is missing. Decoding and storing run
+ * on a single daemon thread; one instance is shared per process.
+ */
+public class HistorySync {
+
+    private static final String TAG = "HistorySync";
+    private static final String DIR = "history";
+    public static final String OUTBOX = "outbox";
+
+    private static HistorySync instance;
+
+    private static class DeviceHistory {
+        final File dir;
+        final HistoryStore store;
+        final DailyRollup rollup = new DailyRollup();
+        final Map<CommandKit, SyncCheckpoint> checkpoints = new HashMap<CommandKit, SyncCheckpoint>();
+
+        DeviceHistory(File dir) throws IOException {
+            this.dir = dir;
+            store = new HistoryStore(dir);
+            File file = new File(dir, DailyRollup.FILE_NAME);
+            if (file.exists()) {
+                try {
+                    rollup.load(file);
+                } catch (IOException e) {
+                    Logger.e(TAG, "Cannot load " + file + ": " + e.getMessage());
+                    rollup.clear();
+                }
+            }
+            if (rollup.getRecordCount() != store.size()) {
+                // Stopped between storing records and saving the rollup
+                rollup.rebuild(store);
+                saveRollup();
+            }
+        }
+
+        void saveRollup() {
+            try {
+                rollup.save(new File(dir, DailyRollup.FILE_NAME));
+            } catch (IOException e) {
+                // Recomputed from the store on the next start
+                Logger.e(TAG, "Cannot save rollup: " + e.getMessage());
+            }
+        }
+
+        SyncCheckpoint checkpoint(CommandKit kind) {
+            SyncCheckpoint checkpoint = checkpoints.get(kind);
+            if (checkpoint == null) {
+                checkpoint = new SyncCheckpoint(dir, kind.name());
+                checkpoints.put(kind, checkpoint);
+            }
+            return checkpoint;
+        }
+    }
+
+    private final File mDir;
+    private final ParallelSyncDecoder mDecoder = new ParallelSyncDecoder(new SportRecordDecoder());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "history-sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Only touched on mExecutor
+    private final Map<String, DeviceHistory> mHistories = new HashMap<String, DeviceHistory>();
+
+    private String mMac;
+    private CommandKit mKind;
+    private List<byte[]> mPackets = new ArrayList<byte[]>();
+
+    public static HistorySync shared(Context context) {
+        synchronized (HistorySync.class) {
+            if (instance == null) {
+                instance = new HistorySync(context);
+            }
+        }
+        return instance;
+    }
+
+    private HistorySync(Context context) {
+        mDir = new File(context.getApplicationContext().getFilesDir(), DIR);
+    }
+
+    /**
+     * Starts collecting the packets of a sync of {@code kind} from {@code mac}, dropping those
+     * of a sync that never ended.
+     */
+    public synchronized void begin(String mac, CommandKit kind) {
+        mMac = mac;
+        mKind = kind;
+        mPackets = new ArrayList<byte[]>();
+    }
+
+    public synchronized void onPacket(byte[] packet) {
+        if (mMac != null) {
+            mPackets.add(packet);
+        }
+    }
+
+    /**
+     * The sync completed, its records are decoded and stored in the background.
+     */
+    public void end() {
+        finish(false);
+    }
+
+    /**
+     * The link was lost during the sync, whatever was received is stored like a completed
+     * sync. A trailing partial record is dropped and comes again with the next sync.
+     */
+    public void interrupt() {
+        finish(true);
+    }
+
+    private synchronized void finish(final boolean interrupted) {
+        if (mMac == null) {
+            return;
+        }
+        final String mac = mMac;
+        final CommandKit kind = mKind;
+        final List<byte[]> packets = mPackets;
+        mMac = null;
+        mPackets = new ArrayList<byte[]>();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                store(mac, kind, packets, interrupted);
+            }
+        });
+    }
+
+    private void store(String mac, CommandKit kind, List<byte[]> packets, boolean interrupted) {
+        try {
+            DeviceHistory history = historyFor(mac);
+            SyncCheckpoint checkpoint = history.checkpoint(kind);
+            List<HistoryRecord> added = new ArrayList<HistoryRecord>();
+            long newest = Long.MIN_VALUE;
+            for (HistoryRecord record : mDecoder.decode(packets)) {
+                if (checkpoint.isNewer(record)) {
+                    added.add(record);
+                    newest = Math.max(newest, record.time);
+                }
+            }
+            if (!added.isEmpty()) {
+                history.store.appendAll(added);
+                history.store.flush();
+                checkpoint.advance(newest);
+                for (HistoryRecord record : added) {
+                    history.rollup.add(record);
+                }
+                history.saveRollup();
+                export(new File(history.dir, OUTBOX), added);
+            }
+            Logger.d(TAG, kind + " of " + mac + (interrupted ? " (interrupted): " : ": ")
+                    + added.size() + " new records, " + history.store.size() + " stored, "
+                    + history.rollup.getDay(System.currentTimeMillis(), DailyRollup.METRIC_STEPS)
+                    + " steps today");
+        } catch (IOException e) {
+            Logger.e(TAG, "Cannot store " + kind + " of " + mac + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void export(File outbox, List<HistoryRecord> records) {
+        if (!outbox.exists() && !outbox.mkdirs()) {
+            Logger.e(TAG, "Cannot create " + outbox);
+            return;
+        }
+        File file = new File(outbox, System.currentTimeMillis() + ".hcmp");
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            CompactHistoryWriter writer = new CompactHistoryWriter(out);
+            for (HistoryRecord record : records) {
+                writer.write(record);
+            }
+            writer.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Logger.e(TAG, "Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Export failed: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private DeviceHistory historyFor(String mac) throws IOException {
+        String key = mac.replace(":", "").toUpperCase();
+        DeviceHistory history = mHistories.get(key);
+        if (history == null) {
+            history = new DeviceHistory(new File(mDir, key));
+            mHistories.put(key, history);
+        }
+        return history;
+    }
+}
@@ -0,0 +1,100 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A device the app has seen, bonded or connected to, as tracked by {@link KnownDeviceRegistry}.
+ * The MAC is kept packed into a long, {@link #getAddress()} formats it on demand. Only the
+ * registry writes the fields, under its lock; they are volatile so the UI thread can read
+ * them without it.
+ */
+public class KnownDevice {
+
+    public static final int RESULT_NONE = 0;
+    public static final int RESULT_CONNECTED = 1;
+    public static final int RESULT_FAILED = 2;
+
+    final long mac;
+    volatile String name;
+    volatile int bondState = BluetoothDevice.BOND_NONE;
+    volatile long lastSeen;
+    volatile int lastRssi;
+    volatile int lastConnectResult = RESULT_NONE;
+    volatile long lastConnected;
+
+    KnownDevice(long mac) {
+        this.mac = mac;
+    }
+
+    public long getMac() {
+        return mac;
+    }
+
+    public String getAddress() {
+        return formatMac(mac);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBondState() {
+        return bondState;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public int getLastRssi() {
+        return lastRssi;
+    }
+
+    public int getLastConnectResult() {
+        return lastConnectResult;
+    }
+
+    public long getLastConnected() {
+        return lastConnected;
+    }
+
+    /**
+     * Same "name@mac" form the device list always showed.
+     */
+    @Override
+    public String toString() {
+        return name + "@" + getAddress();
+    }
+
+    /**
+     * @return the packed MAC or -1 if {@code address} is not of the form "AA:BB:CC:DD:EE:FF"
+     */
+    public static long parseMac(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(address.charAt(i), 16);
+            int low = Character.digit(address.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i < 15 && address.charAt(i + 2) != ':')) {
+                return -1;
+            }
+            mac = (mac << 8) | (high << 4) | low;
+        }
+        return mac;
+    }
+
+    public static String formatMac(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int value = (int) (mac >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(value >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(value & 0xF, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
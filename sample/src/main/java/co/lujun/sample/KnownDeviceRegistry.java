@@ -0,0 +1,347 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import diing.com.core.util.Logger;
+
+/**
+ * Devices the app knows about, indexed by packed MAC and by the name prefixes the app cares
+ * about (e.g. "BODHI"). Fed from bonded devices, scan results, bond results and connection
+ * outcomes, and persisted so the next launch starts with the same picture. The auto-connect
+ * candidate of each prefix is maintained as updates arrive, so looking it up costs nothing.
+ * The file is read on the {@link BluetoothEventLoop}; use {@link #whenLoaded(Runnable)} to
+ * query it once that is done. Devices updated before the load are merged with what was saved.
+ * Saving waits until updates pause for {@link #SAVE_DELAY_MILLIS}, but never longer than
+ * {@link #MAX_SAVE_DELAY_MILLIS} after the first unsaved update.
+ */
+public class KnownDeviceRegistry {
+
+    private static final String TAG = "KnownDeviceRegistry";
+    private static final String FILE_NAME = "known_devices.bin";
+    private static final int FORMAT_VERSION = 1;
+    static final long SAVE_DELAY_MILLIS = 2000;
+    static final long MAX_SAVE_DELAY_MILLIS = 10000;
+
+    private static KnownDeviceRegistry instance;
+
+    private final File mFile;
+    private final String[] mPrefixes;
+    private final Map<Long, KnownDevice> mByMac = new HashMap<Long, KnownDevice>();
+    private final Map<String, Map<Long, KnownDevice>> mByPrefix =
+            new HashMap<String, Map<Long, KnownDevice>>();
+    private final Map<String, KnownDevice> mCandidates = new HashMap<String, KnownDevice>();
+    // elapsedRealtime of the first update since the last save, -1 if there is none
+    private long mUnsavedSince = -1;
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    /**
+     * @param prefixes name prefixes to index, only used by the call that creates the registry
+     */
+    public static KnownDeviceRegistry shared(Context context, String... prefixes) {
+        synchronized (KnownDeviceRegistry.class) {
+            if (instance == null) {
+                instance = new KnownDeviceRegistry(
+                        new File(context.getApplicationContext().getFilesDir(), FILE_NAME),
+                        prefixes);
+            }
+        }
+        return instance;
+    }
+
+    KnownDeviceRegistry(File file, String... prefixes) {
+        mFile = file;
+        mPrefixes = prefixes;
+        for (String prefix : prefixes) {
+            mByPrefix.put(prefix, new LinkedHashMap<Long, KnownDevice>());
+        }
+        BluetoothEventLoop.shared().post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code runnable} on the event loop once the saved devices are loaded.
+     */
+    public void whenLoaded(Runnable runnable) {
+        // The load was posted first, the loop runs in order
+        BluetoothEventLoop.shared().post(runnable);
+    }
+
+    public synchronized KnownDevice get(String address) {
+        return mByMac.get(KnownDevice.parseMac(address));
+    }
+
+    public synchronized KnownDevice get(long mac) {
+        return mByMac.get(mac);
+    }
+
+    /**
+     * @return devices whose name starts with {@code prefix}, in the order they became known
+     */
+    public synchronized List<KnownDevice> getByPrefix(String prefix) {
+        Map<Long, KnownDevice> devices = mByPrefix.get(prefix);
+        return devices == null ? new ArrayList<KnownDevice>()
+                : new ArrayList<KnownDevice>(devices.values());
+    }
+
+    /**
+     * @return the bonded device of {@code prefix} that connected successfully most recently,
+     * or any bonded one if none did, or {@code null}
+     */
+    public synchronized KnownDevice getAutoConnectCandidate(String prefix) {
+        return mCandidates.get(prefix);
+    }
+
+    /**
+     * Takes {@code devices} as the complete set of bonded devices; known devices missing from
+     * it were unbonded while the app was not watching.
+     */
+    public synchronized void importBonded(Set<BluetoothDevice> devices) {
+        Set<Long> bonded = new HashSet<Long>();
+        for (BluetoothDevice device : devices) {
+            KnownDevice known = obtain(device.getAddress(), device.getName());
+            if (known != null) {
+                known.bondState = BluetoothDevice.BOND_BONDED;
+                bonded.add(known.mac);
+                updateCandidate(known);
+            }
+        }
+        for (KnownDevice known : mByMac.values()) {
+            if (known.bondState == BluetoothDevice.BOND_BONDED && !bonded.contains(known.mac)) {
+                known.bondState = BluetoothDevice.BOND_NONE;
+                updateCandidate(known);
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * @return the known device, or {@code null} for an unusable address
+     */
+    public synchronized KnownDevice onScanResult(BluetoothDevice device, int rssi) {
+        KnownDevice known = obtain(device.getAddress(), device.getName());
+        if (known != null) {
+            known.lastSeen = System.currentTimeMillis();
+            known.lastRssi = rssi;
+            scheduleSave();
+        }
+        return known;
+    }
+
+    public synchronized void onBondStateChanged(String address, int bondState) {
+        KnownDevice known = mByMac.get(KnownDevice.parseMac(address));
+        if (known != null) {
+            known.bondState = bondState;
+            updateCandidate(known);
+            scheduleSave();
+        }
+    }
+
+    public synchronized void onConnectResult(String address, boolean connected) {
+        KnownDevice known = mByMac.get(KnownDevice.parseMac(address));
+        if (known == null) {
+            return;
+        }
+        known.lastConnectResult = connected ? KnownDevice.RESULT_CONNECTED : KnownDevice.RESULT_FAILED;
+        if (connected) {
+            known.lastConnected = System.currentTimeMillis();
+        }
+        updateCandidate(known);
+        scheduleSave();
+    }
+
+    private KnownDevice obtain(String address, String name) {
+        long mac = KnownDevice.parseMac(address);
+        if (mac < 0) {
+            return null;
+        }
+        KnownDevice known = mByMac.get(mac);
+        if (known == null) {
+            known = new KnownDevice(mac);
+            mByMac.put(mac, known);
+        }
+        if (name != null && !name.equals(known.name)) {
+            known.name = name;
+            index(known);
+        }
+        return known;
+    }
+
+    /**
+     * Completes {@code current}, updated since the app started, with what was saved of it.
+     */
+    private static void merge(KnownDevice current, KnownDevice saved) {
+        if (current.name == null) {
+            current.name = saved.name;
+        }
+        if (current.bondState == BluetoothDevice.BOND_NONE) {
+            // importBonded() corrects it once the load is done
+            current.bondState = saved.bondState;
+        }
+        if (saved.lastSeen > current.lastSeen) {
+            current.lastSeen = saved.lastSeen;
+            current.lastRssi = saved.lastRssi;
+        }
+        if (current.lastConnectResult == KnownDevice.RESULT_NONE) {
+            current.lastConnectResult = saved.lastConnectResult;
+        }
+        current.lastConnected = Math.max(current.lastConnected, saved.lastConnected);
+    }
+
+    private void index(KnownDevice known) {
+        for (String prefix : mPrefixes) {
+            Map<Long, KnownDevice> devices = mByPrefix.get(prefix);
+            if (known.name != null && known.name.startsWith(prefix)) {
+                devices.put(known.mac, known);
+            } else if (devices.remove(known.mac) != null && mCandidates.get(prefix) == known) {
+                mCandidates.remove(prefix);
+            }
+        }
+    }
+
+    private void updateCandidate(KnownDevice known) {
+        for (String prefix : mPrefixes) {
+            if (!mByPrefix.get(prefix).containsKey(known.mac)) {
+                continue;
+            }
+            KnownDevice current = mCandidates.get(prefix);
+            if (known.bondState != BluetoothDevice.BOND_BONDED) {
+                if (current == known) {
+                    mCandidates.remove(prefix);
+                    // Rare, fall back to scanning the prefix for the next best one
+                    for (KnownDevice other : mByPrefix.get(prefix).values()) {
+                        if (isBetterCandidate(other, mCandidates.get(prefix))) {
+                            mCandidates.put(prefix, other);
+                        }
+                    }
+                }
+            } else if (isBetterCandidate(known, current)) {
+                mCandidates.put(prefix, known);
+            }
+        }
+    }
+
+    private static boolean isBetterCandidate(KnownDevice device, KnownDevice current) {
+        if (device.bondState != BluetoothDevice.BOND_BONDED) {
+            return false;
+        }
+        return current == null || current == device || device.lastConnected > current.lastConnected;
+    }
+
+    private void scheduleSave() {
+        long now = SystemClock.elapsedRealtime();
+        if (mUnsavedSince < 0) {
+            mUnsavedSince = now;
+        }
+        long delay = Math.min(SAVE_DELAY_MILLIS, mUnsavedSince + MAX_SAVE_DELAY_MILLIS - now);
+        BluetoothEventLoop.shared().removeCallbacks(mSave);
+        BluetoothEventLoop.shared().postDelayed(mSave, Math.max(0, delay));
+    }
+
+    private synchronized void save() {
+        mUnsavedSince = -1;
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(mByMac.size());
+            for (KnownDevice known : mByMac.values()) {
+                out.writeLong(known.mac);
+                out.writeBoolean(known.name != null);
+                if (known.name != null) {
+                    out.writeUTF(known.name);
+                }
+                out.writeByte(known.bondState);
+                out.writeLong(known.lastSeen);
+                out.writeShort(known.lastRssi);
+                out.writeByte(known.lastConnectResult);
+                out.writeLong(known.lastConnected);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Logger.e(TAG, "Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Save failed: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private synchronized void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readUnsignedByte() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                KnownDevice known = new KnownDevice(in.readLong());
+                known.name = in.readBoolean() ? in.readUTF() : null;
+                known.bondState = in.readUnsignedByte();
+                known.lastSeen = in.readLong();
+                known.lastRssi = in.readShort();
+                known.lastConnectResult = in.readUnsignedByte();
+                known.lastConnected = in.readLong();
+                KnownDevice current = mByMac.get(known.mac);
+                if (current != null) {
+                    // Updated since the app started, keep that and fill in the rest
+                    merge(current, known);
+                    known = current;
+                } else {
+                    mByMac.put(known.mac, known);
+                }
+                index(known);
+                updateCandidate(known);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Load failed: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        // Build the controllers while the user picks a screen
+        ConnectionHost.shared(this).prepare();
 
         Button btnCbt = (Button) findViewById(R.id.btn_cbt_activity);
         Button btnBle = (Button) findViewById(R.id.btn_ble_activity);
@@ -30,5 +32,14 @@ public class MainActivity extends AppCompatActivity {
             }
         });
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Leaving the app, the connection host has nothing left to keep alive
+        if (isFinishing()) {
+            ConnectionHost.shared(this).release();
+        }
+    }
 }
 
@@ -0,0 +1,285 @@
+package co.lujun.sample;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue between the binder thread that receives notifications and the consumers
+ * running on a {@link Handler} thread, usually {@link BluetoothEventLoop}. Each characteristic
+ * gets a {@link Lane} with its own capacity and {@link OverflowPolicy}, but all lanes share one
+ * FIFO and one drain, so values reach the consumers in the order they arrived no matter which
+ * characteristic they came on. The receiving thread never waits, as that would stall every
+ * other GATT callback. Depth and drops are counted per lane and exposed through
+ * {@link Lane#getMetrics()}. The consumers get at most {@link #DRAIN_BATCH} values per handler
+ * message, so a busy queue does not hold up the rest of the loop.
+ */
+public class NotificationQueue {
+
+    public static final int DRAIN_BATCH = 16;
+
+    public enum OverflowPolicy {
+        /** The oldest queued value of the lane is dropped to make room. */
+        DROP_OLDEST,
+        /**
+         * A queued value with the same {@link KeyFunction key} is replaced in place, for
+         * streams where only the latest value per key matters. A full lane drops its oldest
+         * value for a new key.
+         */
+        COALESCE_LATEST,
+        /**
+         * Nothing queued is dropped, for data such as sync that is useless with a hole in it.
+         * A full lane stops taking values: the {@link OnOverflowListener} is called once
+         * everything the lane took before has been delivered, and the lane takes values again
+         * from then on.
+         */
+        NEVER_DROP
+    }
+
+    public interface Consumer {
+        void onNotification(byte[] value);
+    }
+
+    public interface KeyFunction {
+        /**
+         * @return what identifies the stream {@code value} belongs to, compared with equals
+         */
+        Object keyOf(byte[] value);
+    }
+
+    public interface OnOverflowListener {
+        /**
+         * Called on the handler thread in order with the values of the queue.
+         */
+        void onOverflow(Lane lane);
+    }
+
+    public static class Metrics {
+        public final String uuid;
+        public final int depth;
+        public final int highWatermark;
+        public final long enqueued;
+        public final long delivered;
+        public final long dropped;
+        public final long coalesced;
+
+        Metrics(String uuid, int depth, int highWatermark, long enqueued, long delivered,
+                long dropped, long coalesced) {
+            this.uuid = uuid;
+            this.depth = depth;
+            this.highWatermark = highWatermark;
+            this.enqueued = enqueued;
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.coalesced = coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{" + uuid + ", depth=" + depth + ", high=" + highWatermark
+                    + ", enqueued=" + enqueued + ", delivered=" + delivered
+                    + ", dropped=" + dropped + ", coalesced=" + coalesced + "}";
+        }
+    }
+
+    /**
+     * The values of one characteristic. All state is guarded by the queue.
+     */
+    public class Lane {
+        private final String mUuid;
+        private final int mCapacity;
+        private final OverflowPolicy mPolicy;
+        private final KeyFunction mKeyFunction;
+        private final Consumer mConsumer;
+
+        private int mDepth;
+        private boolean mOverflowed;
+        private int mHighWatermark;
+        private long mEnqueued;
+        private long mDelivered;
+        private long mDropped;
+        private long mCoalesced;
+
+        private Lane(String uuid, int capacity, OverflowPolicy policy, KeyFunction keyFunction,
+                     Consumer consumer) {
+            mUuid = uuid;
+            mCapacity = capacity;
+            mPolicy = policy;
+            mKeyFunction = keyFunction;
+            mConsumer = consumer;
+        }
+
+        public String getUuid() {
+            return mUuid;
+        }
+
+        /**
+         * Queues {@code value} for the consumer of this lane. The array must not be modified
+         * afterwards.
+         *
+         * @return {@code false} if a {@link OverflowPolicy#NEVER_DROP} lane is full and the
+         * value was not taken
+         */
+        public boolean offer(byte[] value) {
+            return NotificationQueue.this.offer(this, value);
+        }
+
+        public Metrics getMetrics() {
+            synchronized (NotificationQueue.this) {
+                return new Metrics(mUuid, mDepth, mHighWatermark, mEnqueued, mDelivered, mDropped,
+                        mCoalesced);
+            }
+        }
+    }
+
+    private static class Entry {
+        final Lane lane;
+        final Object key;
+        // null marks the overflow of a NEVER_DROP lane
+        byte[] value;
+
+        Entry(Lane lane, Object key, byte[] value) {
+            this.lane = lane;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+
+    private OnOverflowListener mOverflowListener;
+    private boolean mDrainScheduled;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public NotificationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    public synchronized void setOnOverflowListener(OnOverflowListener listener) {
+        mOverflowListener = listener;
+    }
+
+    /**
+     * @param keyFunction required for {@link OverflowPolicy#COALESCE_LATEST}, ignored otherwise
+     */
+    public Lane addLane(String uuid, int capacity, OverflowPolicy policy, KeyFunction keyFunction,
+                        Consumer consumer) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        if (policy == OverflowPolicy.COALESCE_LATEST && keyFunction == null) {
+            throw new IllegalArgumentException("COALESCE_LATEST needs a key function");
+        }
+        return new Lane(uuid, capacity, policy,
+                policy == OverflowPolicy.COALESCE_LATEST ? keyFunction : null, consumer);
+    }
+
+    /**
+     * Drops everything still queued, e.g. when the link is lost.
+     */
+    public synchronized void clear() {
+        for (Entry entry : mQueue) {
+            if (entry.value != null) {
+                entry.lane.mDropped++;
+            }
+            entry.lane.mDepth = 0;
+            entry.lane.mOverflowed = false;
+        }
+        mQueue.clear();
+    }
+
+    private boolean offer(Lane lane, byte[] value) {
+        synchronized (this) {
+            if (lane.mOverflowed) {
+                lane.mDropped++;
+                return false;
+            }
+            Object key = lane.mKeyFunction != null ? lane.mKeyFunction.keyOf(value) : null;
+            if (key != null && replace(lane, key, value)) {
+                lane.mEnqueued++;
+                lane.mCoalesced++;
+                return true;
+            }
+            if (lane.mDepth >= lane.mCapacity) {
+                if (lane.mPolicy == OverflowPolicy.NEVER_DROP) {
+                    lane.mOverflowed = true;
+                    lane.mDropped++;
+                    mQueue.addLast(new Entry(lane, null, null));
+                    scheduleDrain();
+                    return false;
+                }
+                removeOldest(lane);
+                lane.mDropped++;
+            }
+            mQueue.addLast(new Entry(lane, key, value));
+            lane.mDepth++;
+            lane.mEnqueued++;
+            lane.mHighWatermark = Math.max(lane.mHighWatermark, lane.mDepth);
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    private boolean replace(Lane lane, Object key, byte[] value) {
+        for (Entry entry : mQueue) {
+            if (entry.lane == lane && key.equals(entry.key)) {
+                entry.value = value;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeOldest(Lane lane) {
+        for (Iterator<Entry> it = mQueue.iterator(); it.hasNext(); ) {
+            if (it.next().lane == lane) {
+                it.remove();
+                lane.mDepth--;
+                return;
+            }
+        }
+    }
+
+    private void scheduleDrain() {
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            mHandler.post(mDrain);
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Entry entry;
+            OnOverflowListener overflowListener = null;
+            synchronized (this) {
+                entry = mQueue.pollFirst();
+                if (entry == null) {
+                    mDrainScheduled = false;
+                    return;
+                }
+                if (entry.value != null) {
+                    entry.lane.mDepth--;
+                    entry.lane.mDelivered++;
+                } else {
+                    entry.lane.mOverflowed = false;
+                    overflowListener = mOverflowListener;
+                }
+            }
+            if (entry.value != null) {
+                entry.lane.mConsumer.onNotification(entry.value);
+            } else if (overflowListener != null) {
+                overflowListener.onOverflow(entry.lane);
+            }
+        }
+        // Let other work on the loop run before the next batch
+        mHandler.post(mDrain);
+    }
+}
@@ -0,0 +1,127 @@
+package co.lujun.sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a completed set of sync packets on several cores. The payloads are joined, cut into
+ * segments on record boundaries and each segment is decoded on its own; results come back in
+ * the original order. Small sets are decoded on the calling thread, where the hand-off would
+ * cost more than it saves. The pool is a bounded {@link ThreadPoolExecutor} rather than a
+ * fork-join pool, which needs API 21.
+ */
+public class ParallelSyncDecoder {
+
+    private static final int MIN_RECORDS_PER_SEGMENT = 512;
+    private static final int MAX_THREADS = 4;
+
+    private static ExecutorService executor;
+
+    private final SyncRecordDecoder mDecoder;
+
+    public ParallelSyncDecoder(SyncRecordDecoder decoder) {
+        mDecoder = decoder;
+    }
+
+    /**
+     * @return the decoded records in packet order; a trailing partial record is ignored
+     */
+    public List<HistoryRecord> decode(List<byte[]> packets) throws InterruptedException {
+        final byte[] data = join(packets);
+        final int recordSize = mDecoder.getRecordSize();
+        int records = data.length / recordSize;
+        int segments = Math.min(threads(), records / MIN_RECORDS_PER_SEGMENT);
+        if (segments <= 1) {
+            return decodeRange(data, 0, records);
+        }
+
+        List<Callable<List<HistoryRecord>>> tasks = new ArrayList<Callable<List<HistoryRecord>>>(segments);
+        int perSegment = (records + segments - 1) / segments;
+        for (int start = 0; start < records; start += perSegment) {
+            final int first = start;
+            final int count = Math.min(perSegment, records - start);
+            tasks.add(new Callable<List<HistoryRecord>>() {
+                @Override
+                public List<HistoryRecord> call() {
+                    return decodeRange(data, first, count);
+                }
+            });
+        }
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>(records);
+        for (Future<List<HistoryRecord>> future : executor().invokeAll(tasks)) {
+            try {
+                result.addAll(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+        return result;
+    }
+
+    private List<HistoryRecord> decodeRange(byte[] data, int first, int count) {
+        int recordSize = mDecoder.getRecordSize();
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>(count);
+        for (int i = first; i < first + count; i++) {
+            HistoryRecord record = mDecoder.decode(data, i * recordSize);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private byte[] join(List<byte[]> packets) {
+        int length = 0;
+        for (byte[] packet : packets) {
+            length += mDecoder.getPayloadLength(packet);
+        }
+        byte[] data = new byte[length];
+        int position = 0;
+        for (byte[] packet : packets) {
+            int payloadLength = mDecoder.getPayloadLength(packet);
+            System.arraycopy(packet, mDecoder.getPayloadOffset(packet), data, position, payloadLength);
+            position += payloadLength;
+        }
+        return data;
+    }
+
+    private static int threads() {
+        return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Bounded pool shared by all decoders; idle threads go away after a few seconds.
+     */
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            int threads = threads();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "sync-decode-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,309 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import com.diing.bluetooth.base.State;
+import com.diing.bluetooth.controller.BluetoothLEController;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what each device costs on the radio, per {@link Category}: bytes and frames each way,
+ * time spent and how many operations ran. Frame counters are plain atomic adds on the callback
+ * thread; time is attributed in slices when the connection state or the active session
+ * changes. Connected time outside of any session is booked as {@link Category#IDLE}, which is
+ * what an open but unused link costs. Scanning is not tied to a device and is booked under
+ * {@link #ANY_DEVICE}.
+ */
+public class RadioAccounting extends GattEventAdapter {
+
+    public static final String ANY_DEVICE = "*";
+    /** Typical interval of an Android connection, for {@link Usage#getOccupancy(long)} */
+    public static final long DEFAULT_CONNECTION_INTERVAL_MILLIS = 30;
+
+    public enum Category {
+        SCAN, CONNECT, DISCOVERY, COMMAND, SYNC, REALTIME, IDLE
+    }
+
+    private static final int BYTES_OUT = 0;
+    private static final int BYTES_IN = 1;
+    private static final int FRAMES_OUT = 2;
+    private static final int FRAMES_IN = 3;
+    private static final int ACTIVE_MILLIS = 4;
+    private static final int OPERATIONS = 5;
+    private static final int FIELDS = 6;
+    private static final Category[] CATEGORIES = Category.values();
+
+    public static class Usage {
+        public final long bytesOut;
+        public final long bytesIn;
+        public final long framesOut;
+        public final long framesIn;
+        public final long activeMillis;
+        public final long operations;
+
+        Usage(long bytesOut, long bytesIn, long framesOut, long framesIn, long activeMillis,
+              long operations) {
+            this.bytesOut = bytesOut;
+            this.bytesIn = bytesIn;
+            this.framesOut = framesOut;
+            this.framesIn = framesIn;
+            this.activeMillis = activeMillis;
+            this.operations = operations;
+        }
+
+        /**
+         * @return frames per connection event while active; the controller does not report the
+         * negotiated interval, so it is passed in
+         */
+        public double getOccupancy(long connectionIntervalMillis) {
+            long events = activeMillis / Math.max(1, connectionIntervalMillis);
+            return events == 0 ? 0 : (double) (framesOut + framesIn) / events;
+        }
+
+        Usage plus(Usage other) {
+            return new Usage(bytesOut + other.bytesOut, bytesIn + other.bytesIn,
+                    framesOut + other.framesOut, framesIn + other.framesIn,
+                    activeMillis + other.activeMillis, operations + other.operations);
+        }
+
+        @Override
+        public String toString() {
+            return "out " + framesOut + "/" + bytesOut + "B, in " + framesIn + "/" + bytesIn
+                    + "B, " + activeMillis + "ms, " + operations + " ops";
+        }
+    }
+
+    private static class Account {
+        final AtomicLongArray counters = new AtomicLongArray(CATEGORIES.length * FIELDS);
+
+        void add(Category category, int field, long delta) {
+            counters.addAndGet(category.ordinal() * FIELDS + field, delta);
+        }
+
+        Usage usage(Category category) {
+            int base = category.ordinal() * FIELDS;
+            return new Usage(counters.get(base + BYTES_OUT), counters.get(base + BYTES_IN),
+                    counters.get(base + FRAMES_OUT), counters.get(base + FRAMES_IN),
+                    counters.get(base + ACTIVE_MILLIS), counters.get(base + OPERATIONS));
+        }
+    }
+
+    private final BluetoothLEController mController;
+    private final ConcurrentMap<String, Account> mAccounts = new ConcurrentHashMap<String, Account>();
+    private final Account mAnyDevice = account(ANY_DEVICE);
+    private volatile Account mCurrent;
+    private volatile Category mSession;
+    private volatile Set<String> mSyncCharacteristics = new HashSet<String>();
+
+    // Connection phase bookkeeping, guarded by this
+    private Category mPhase;
+    private long mPhaseStartedAt;
+
+    public RadioAccounting(BluetoothLEController controller) {
+        mController = controller;
+    }
+
+    /**
+     * Traffic on these characteristics is booked as {@link Category#SYNC}.
+     */
+    public void setSyncCharacteristics(String... uuids) {
+        Set<String> set = new HashSet<String>();
+        for (String uuid : uuids) {
+            set.add(uuid.toLowerCase());
+        }
+        mSyncCharacteristics = set;
+    }
+
+    /**
+     * Books the connected time from now on, and traffic outside of the sync characteristics,
+     * to {@code category}, e.g. {@link Category#SYNC} or {@link Category#REALTIME}.
+     */
+    public synchronized void beginSession(Category category) {
+        if (mPhase != null && (mPhase == Category.IDLE || mPhase == mSession)) {
+            switchPhase(category);
+        }
+        mSession = category;
+        Account account = mCurrent;
+        if (account != null) {
+            account.add(category, OPERATIONS, 1);
+        }
+    }
+
+    public synchronized void endSession(Category category) {
+        if (mSession != category) {
+            return;
+        }
+        mSession = null;
+        if (mPhase == category) {
+            switchPhase(Category.IDLE);
+        }
+    }
+
+    public void addScanTime(long millis) {
+        mAnyDevice.add(Category.SCAN, ACTIVE_MILLIS, millis);
+        mAnyDevice.add(Category.SCAN, OPERATIONS, 1);
+    }
+
+    public Set<String> getDevices() {
+        return new HashSet<String>(mAccounts.keySet());
+    }
+
+    /**
+     * @return usage of {@code mac} in {@code category} so far, including the running slice
+     */
+    public Usage getUsage(String mac, Category category) {
+        Account account = mAccounts.get(mac.toUpperCase());
+        if (account == null) {
+            return new Usage(0, 0, 0, 0, 0, 0);
+        }
+        Usage usage = account.usage(category);
+        synchronized (this) {
+            if (account == mCurrent && mPhase == category) {
+                usage = usage.plus(new Usage(0, 0, 0, 0,
+                        SystemClock.elapsedRealtime() - mPhaseStartedAt, 0));
+            }
+        }
+        return usage;
+    }
+
+    public Usage getTotal(Category category) {
+        Usage total = new Usage(0, 0, 0, 0, 0, 0);
+        for (String mac : mAccounts.keySet()) {
+            total = total.plus(getUsage(mac, category));
+        }
+        return total;
+    }
+
+    /**
+     * @return time {@code mac} was connected, i.e. the sum over every category but the ones
+     * before the link was up
+     */
+    public long getConnectedMillis(String mac) {
+        long millis = 0;
+        for (Category category : CATEGORIES) {
+            if (category != Category.SCAN && category != Category.CONNECT
+                    && category != Category.DISCOVERY) {
+                millis += getUsage(mac, category).activeMillis;
+            }
+        }
+        return millis;
+    }
+
+    public synchronized void reset() {
+        mAccounts.clear();
+        mAccounts.put(ANY_DEVICE, mAnyDevice);
+        for (int i = 0; i < mAnyDevice.counters.length(); i++) {
+            mAnyDevice.counters.set(i, 0);
+        }
+        String mac = mCurrent != null ? currentMac() : null;
+        mCurrent = mac != null ? account(mac) : null;
+        mPhaseStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public synchronized void onBluetoothServiceStateChanged(int state) {
+        switch (state) {
+            case State.STATE_CONNECTING:
+                // Close the running slice while its device is still known
+                switchPhase(Category.CONNECT);
+                mCurrent = null;
+                break;
+            case State.STATE_CONNECTED:
+                String mac = currentMac();
+                if (mac == null) {
+                    break;
+                }
+                // The target is only known once connected, book the attempt to it now
+                Account account = account(mac);
+                if (mPhase == Category.CONNECT) {
+                    account.add(Category.CONNECT, ACTIVE_MILLIS,
+                            SystemClock.elapsedRealtime() - mPhaseStartedAt);
+                    mPhase = null;
+                }
+                account.add(Category.CONNECT, OPERATIONS, 1);
+                mCurrent = account;
+                switchPhase(Category.DISCOVERY);
+                mCurrent.add(Category.DISCOVERY, OPERATIONS, 1);
+                break;
+            case State.STATE_GOT_CHARACTERISTICS:
+                switchPhase(mSession != null ? mSession : Category.IDLE);
+                break;
+            case State.STATE_DISCONNECTED:
+            case State.STATE_NONE:
+                switchPhase(null);
+                mCurrent = null;
+                mSession = null;
+                break;
+        }
+    }
+
+    @Override
+    public void onWriteData(BluetoothGattCharacteristic characteristic) {
+        count(characteristic, BYTES_OUT, FRAMES_OUT);
+    }
+
+    @Override
+    public void onReadData(BluetoothGattCharacteristic characteristic) {
+        count(characteristic, BYTES_IN, FRAMES_IN);
+    }
+
+    @Override
+    public void onDataChanged(BluetoothGattCharacteristic characteristic) {
+        count(characteristic, BYTES_IN, FRAMES_IN);
+    }
+
+    private void count(BluetoothGattCharacteristic characteristic, int bytesField, int framesField) {
+        Account account = mCurrent;
+        if (account == null) {
+            return;
+        }
+        Category category;
+        if (mSyncCharacteristics.contains(characteristic.getUuid().toString().toLowerCase())) {
+            category = Category.SYNC;
+        } else {
+            Category session = mSession;
+            category = session == Category.REALTIME ? Category.REALTIME : Category.COMMAND;
+        }
+        byte[] value = characteristic.getValue();
+        account.add(category, bytesField, value == null ? 0 : value.length);
+        account.add(category, framesField, 1);
+    }
+
+    /**
+     * Closes the running time slice and starts one for {@code phase}, {@code null} to stop.
+     */
+    private void switchPhase(Category phase) {
+        long now = SystemClock.elapsedRealtime();
+        // A connect that never got through has no known target
+        Account account = mPhase == Category.CONNECT ? mAnyDevice : mCurrent;
+        if (mPhase != null && account != null) {
+            account.add(mPhase, ACTIVE_MILLIS, now - mPhaseStartedAt);
+        }
+        mPhase = phase;
+        mPhaseStartedAt = now;
+    }
+
+    private String currentMac() {
+        BluetoothDevice device = mController.getConnectedDevice();
+        return device == null ? null : device.getAddress().toUpperCase();
+    }
+
+    private Account account(String mac) {
+        Account account = mAccounts.get(mac);
+        if (account == null) {
+            Account created = new Account();
+            account = mAccounts.putIfAbsent(mac, created);
+            if (account == null) {
+                account = created;
+            }
+        }
+        return account;
+    }
+}
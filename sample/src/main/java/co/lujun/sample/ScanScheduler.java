@@ -0,0 +1,199 @@
+package co.lujun.sample;
+
+import android.os.SystemClock;
+
+import com.diing.bluetooth.controller.BluetoothLEController;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Runs discovery as duty-cycled scan windows instead of one long scan. While windows keep
+ * turning up devices that were not seen recently the scheduler scans long and often, once the
+ * surroundings are stable it shortens the windows and backs off the pauses between them.
+ * Scan starts are spaced so no more than {@link #MAX_STARTS} happen within
+ * {@link #START_PERIOD_MILLIS}, the limit above which Android silently stops delivering results.
+ * Android counts the starts of the whole app, so the {@link StartHistory} is shared: the
+ * scheduler is owned by {@link ConnectionHost#getScanScheduler()}, which keeps the history
+ * when it builds a new one. All timing runs on {@link BluetoothEventLoop}.
+ */
+public class ScanScheduler {
+
+    public static final int MAX_STARTS = 5;
+    public static final long START_PERIOD_MILLIS = 30 * 1000L;
+
+    public static final long MIN_WINDOW_MILLIS = 2 * 1000L;
+    public static final long MAX_WINDOW_MILLIS = 10 * 1000L;
+    public static final long MIN_PAUSE_MILLIS = 2 * 1000L;
+    public static final long MAX_PAUSE_MILLIS = 60 * 1000L;
+    public static final long FORGET_AFTER_MILLIS = 5 * 60 * 1000L;
+
+    public interface OnScanCycleListener {
+        void onScanCycle(int newDevices, long nextWindowMillis, long nextPauseMillis);
+    }
+
+    /**
+     * The last {@link #MAX_STARTS} scan starts of the process. Only used on the event loop.
+     */
+    public static class StartHistory {
+        private final long[] mStarts = new long[MAX_STARTS];
+        private int mCount;
+
+        /**
+         * @return how long to wait before the next start is allowed, 0 if it is now
+         */
+        long delay(long now) {
+            if (mCount < MAX_STARTS) {
+                return 0;
+            }
+            // The oldest of the last MAX_STARTS starts decides when the next one is allowed
+            long oldest = mStarts[mCount % MAX_STARTS];
+            return Math.max(0, START_PERIOD_MILLIS - (now - oldest));
+        }
+
+        void add(long now) {
+            mStarts[mCount++ % MAX_STARTS] = now;
+        }
+    }
+
+    private final BluetoothLEController mController;
+    private final StartHistory mStarts;
+    private final Map<String, Long> mLastSeen = new HashMap<String, Long>();
+
+    private OnScanCycleListener mListener;
+    private RadioAccounting mAccounting;
+    private long mScanStartedAt;
+    private boolean mRunning;
+    private boolean mScanning;
+    private int mNewDevices;
+    private long mWindowMillis = MAX_WINDOW_MILLIS;
+    private long mPauseMillis = MIN_PAUSE_MILLIS;
+
+    private final Runnable mStartWindow = new Runnable() {
+        @Override
+        public void run() {
+            startWindow();
+        }
+    };
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    public ScanScheduler(BluetoothLEController controller, StartHistory starts) {
+        mController = controller;
+        mStarts = starts;
+    }
+
+    public void setOnScanCycleListener(OnScanCycleListener listener) {
+        mListener = listener;
+    }
+
+    public void setRadioAccounting(RadioAccounting accounting) {
+        mAccounting = accounting;
+    }
+
+    public void start() {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+                mWindowMillis = MAX_WINDOW_MILLIS;
+                mPauseMillis = MIN_PAUSE_MILLIS;
+                startWindow();
+            }
+        });
+    }
+
+    public void stop() {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                BluetoothEventLoop.shared().removeCallbacks(mStartWindow);
+                BluetoothEventLoop.shared().removeCallbacks(mEndWindow);
+                cancelScan();
+            }
+        });
+    }
+
+    /**
+     * Feed every {@code onActionDeviceFound} address in here.
+     */
+    public void onDeviceFound(final String address) {
+        BluetoothEventLoop.shared().execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = SystemClock.elapsedRealtime();
+                Long lastSeen = mLastSeen.put(address, now);
+                if (lastSeen == null || now - lastSeen > FORGET_AFTER_MILLIS) {
+                    mNewDevices++;
+                }
+            }
+        });
+    }
+
+    private void startWindow() {
+        if (!mRunning) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long delay = mStarts.delay(now);
+        if (delay > 0) {
+            BluetoothEventLoop.shared().postDelayed(mStartWindow, delay);
+            return;
+        }
+        mStarts.add(now);
+        mNewDevices = 0;
+        mScanning = mController.startScan();
+        mScanStartedAt = now;
+        BluetoothEventLoop.shared().postDelayed(mEndWindow, mWindowMillis);
+    }
+
+    private void endWindow() {
+        if (!mRunning) {
+            return;
+        }
+        cancelScan();
+        if (mNewDevices > 0) {
+            mWindowMillis = MAX_WINDOW_MILLIS;
+            mPauseMillis = MIN_PAUSE_MILLIS;
+        } else {
+            mWindowMillis = Math.max(MIN_WINDOW_MILLIS, mWindowMillis / 2);
+            mPauseMillis = Math.min(MAX_PAUSE_MILLIS, mPauseMillis * 2);
+        }
+        forgetStale();
+        if (mListener != null) {
+            mListener.onScanCycle(mNewDevices, mWindowMillis, mPauseMillis);
+        }
+        BluetoothEventLoop.shared().postDelayed(mStartWindow, mPauseMillis);
+    }
+
+    private void cancelScan() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        mController.cancelScan();
+        if (mAccounting != null) {
+            mAccounting.addScanTime(SystemClock.elapsedRealtime() - mScanStartedAt);
+        }
+    }
+
+    private void forgetStale() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Long> iterator = mLastSeen.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() > FORGET_AFTER_MILLIS) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package co.lujun.sample;
+
+/**
+ * Decodes the records of {@code SyncSport} and {@code SyncSportHistory} packets:
+ *
+ * <pre>
+ * packet = command:1 index:1 record*
+ * record = time:4 kind:1 flags:1 value0..value3:2 each reserved:2   (little endian)
+ * </pre>
+ *
+ * {@code time} is in seconds since the epoch, {@code kind} 1 for sport and 2 for sleep; the
+ * values follow {@link HistoryRecord#TYPE_SPORT} and {@link HistoryRecord#TYPE_SLEEP}. Records
+ * of any other kind or without a time fill up the last packet and are skipped.
+ * <p>
+ * {@code CommandController} does not publish its decoder, so this layout is kept here and has
+ * to follow the firmware.
+ */
+public class SportRecordDecoder implements SyncRecordDecoder {
+
+    public static final int HEADER_SIZE = 2;
+    public static final int RECORD_SIZE = 16;
+
+    private static final int KIND_SPORT = 1;
+    private static final int KIND_SLEEP = 2;
+
+    @Override
+    public int getRecordSize() {
+        return RECORD_SIZE;
+    }
+
+    @Override
+    public int getPayloadOffset(byte[] packet) {
+        return Math.min(HEADER_SIZE, packet.length);
+    }
+
+    @Override
+    public int getPayloadLength(byte[] packet) {
+        return Math.max(0, packet.length - HEADER_SIZE);
+    }
+
+    @Override
+    public HistoryRecord decode(byte[] data, int offset) {
+        long seconds = readInt(data, offset) & 0xFFFFFFFFL;
+        int kind = data[offset + 4] & 0xFF;
+        int flags = data[offset + 5] & 0xFF;
+        if (seconds == 0) {
+            return null;
+        }
+        int v0 = readShort(data, offset + 6);
+        int v1 = readShort(data, offset + 8);
+        int v2 = readShort(data, offset + 10);
+        int v3 = readShort(data, offset + 12);
+        if (kind == KIND_SPORT) {
+            return new HistoryRecord(seconds * 1000, HistoryRecord.TYPE_SPORT, flags, v0, v1, v2, v3);
+        } else if (kind == KIND_SLEEP) {
+            return new HistoryRecord(seconds * 1000, HistoryRecord.TYPE_SLEEP, flags, v0, v1);
+        }
+        return null;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | readShort(data, offset + 2) << 16;
+    }
+}
@@ -0,0 +1,91 @@
+package co.lujun.sample;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import diing.com.core.util.Logger;
+
+/**
+ * Persists how far a kind of sync has been stored for one device: the time of the newest
+ * record stored. The device always sends a sync from its first record, so a sync that was
+ * cut off keeps what it stored and the next one only stores what lies past the checkpoint,
+ * as long as the device sends its records in time order.
+ */
+public class SyncCheckpoint {
+
+    private static final String TAG = "SyncCheckpoint";
+    private static final String SUFFIX = ".ckpt";
+
+    private final File mFile;
+    private long mLastRecordTime = Long.MIN_VALUE;
+
+    public SyncCheckpoint(File dir, String kind) {
+        mFile = new File(dir, kind + SUFFIX);
+        read();
+    }
+
+    public synchronized long getLastRecordTime() {
+        return mLastRecordTime;
+    }
+
+    public synchronized boolean isNewer(HistoryRecord record) {
+        return record.time > mLastRecordTime;
+    }
+
+    /**
+     * Records that everything up to {@code time} is stored. Call only once the records are
+     * on disk.
+     */
+    public synchronized void advance(long time) {
+        if (time <= mLastRecordTime) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeLong(time);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Logger.e(TAG, "Failed to replace " + mFile);
+                return;
+            }
+            mLastRecordTime = time;
+        } catch (IOException e) {
+            Logger.e(TAG, "Checkpoint write failed: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    private void read() {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            mLastRecordTime = in.readLong();
+        } catch (IOException e) {
+            Logger.e(TAG, "Checkpoint read failed: " + e.getMessage());
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
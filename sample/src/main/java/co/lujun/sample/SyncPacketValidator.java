@@ -0,0 +1,300 @@
+package co.lujun.sample;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Checks sync packets before they reach the decoder. Each packet carries a wrapping sequence
+ * number, the {@code index} byte of the firmware's sync packets, and optionally a CRC-16
+ * trailer ({@link Crc16}) that corrupt packets are dropped by. Gaps are collected as ranges.
+ * Packets are handed to the {@link PacketSink} in sequence order as they came, without the
+ * trailer; anything behind a gap waits until the gap is filled or the sync gives up.
+ * <p>
+ * Lost packets at the end of a sync leave no gap. The device sends its packets back to back
+ * and the end right after them, so a pause before the end that is much longer than the usual
+ * spacing of the packets ({@link #TAIL_GAP_FACTOR}, at least {@link #MIN_TAIL_GAP_MILLIS})
+ * is taken as a lost tail, and the next pass may extend the sync past its last packet.
+ * <p>
+ * The sync protocol has no way to ask for a range, so a retransmit pass replays the sync from
+ * its first packet and only the missing packets are taken; it can be stopped as soon as they
+ * are in. Its sequence numbers are unwrapped against the position in that replay rather than
+ * against the end of the first pass; with 1 byte sequences the two are usually several wraps
+ * apart. A sync given up after {@link #DEFAULT_MAX_PASSES} only delivers what comes before its
+ * first gap, so the history stored from it has no holes and the next sync starts there.
+ */
+public class SyncPacketValidator {
+
+    public static final int DEFAULT_MAX_PASSES = 3;
+    public static final int TAIL_GAP_FACTOR = 8;
+    public static final long MIN_TAIL_GAP_MILLIS = 500;
+
+    public static final int RESULT_ACCEPTED = 0;
+    public static final int RESULT_DUPLICATE = 1;
+    public static final int RESULT_CORRUPT = 2;
+
+    public interface PacketSink {
+        /** @param packet the packet as received, without a CRC trailer */
+        void onPacket(byte[] packet);
+    }
+
+    public interface OnIntegrityListener {
+        /**
+         * Some packets are missing; each range is {first, last} sequence, inclusive, and the
+         * last range may be open ended ({@link Integer#MAX_VALUE}) for a lost tail.
+         * Call {@link #beginRetransmit()} and run the sync again to fetch them.
+         */
+        void onRetransmitNeeded(List<int[]> ranges);
+
+        /** Every missing packet arrived during a retransmit pass, the sync can be stopped */
+        void onGapsFilled();
+
+        void onComplete(int packets, int corrupt, int passes);
+
+        /**
+         * Gave up after {@link #DEFAULT_MAX_PASSES}; the ranges were never received and
+         * nothing after the first of them was delivered
+         */
+        void onIncomplete(List<int[]> ranges);
+    }
+
+    private final int mSequenceOffset;
+    private final int mSequenceBytes;
+    private final int mSequenceRange;
+    private final boolean mCrc;
+    private final PacketSink mSink;
+    private final int mMaxPasses;
+    private OnIntegrityListener mListener;
+
+    private final TreeMap<Integer, byte[]> mPending = new TreeMap<Integer, byte[]>();
+    private final BitSet mMissing = new BitSet();
+    private int mNextDelivery;
+    private int mHighest;
+    private int mPackets;
+    private int mCorrupt;
+    private int mPasses;
+    private boolean mRetransmitting;
+    private boolean mTailLost;
+    // Unwrapped sequence of the last intact packet of the current retransmit pass
+    private int mReplayPosition;
+    // Arrival of the first and the latest packet of the current pass
+    private long mPassStart;
+    private long mLastArrival;
+    private int mPassPackets;
+
+    /**
+     * @param sequenceOffset offset of the little-endian sequence number in a packet
+     * @param sequenceBytes  size of the sequence number, 1 or 2; it may wrap
+     * @param crc            whether packets end in a CRC-16 trailer
+     */
+    public SyncPacketValidator(int sequenceOffset, int sequenceBytes, boolean crc, PacketSink sink) {
+        this(sequenceOffset, sequenceBytes, crc, sink, DEFAULT_MAX_PASSES);
+    }
+
+    public SyncPacketValidator(int sequenceOffset, int sequenceBytes, boolean crc, PacketSink sink,
+                               int maxPasses) {
+        mSequenceOffset = sequenceOffset;
+        mSequenceBytes = sequenceBytes;
+        mSequenceRange = 1 << (8 * sequenceBytes);
+        mCrc = crc;
+        mSink = sink;
+        mMaxPasses = maxPasses;
+        begin();
+    }
+
+    public void setOnIntegrityListener(OnIntegrityListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts a new sync, forgetting everything from the last one.
+     */
+    public void begin() {
+        mPending.clear();
+        mMissing.clear();
+        mNextDelivery = 0;
+        mHighest = -1;
+        mPackets = 0;
+        mCorrupt = 0;
+        mPasses = 1;
+        mRetransmitting = false;
+        mTailLost = false;
+        mPassPackets = 0;
+    }
+
+    /**
+     * Starts another pass of the same sync; only the missing packets will be taken.
+     */
+    public void beginRetransmit() {
+        mRetransmitting = true;
+        mReplayPosition = -1;
+        mPasses++;
+        mPassPackets = 0;
+    }
+
+    public boolean isRetransmitting() {
+        return mRetransmitting;
+    }
+
+    public int onPacket(byte[] packet) {
+        if (!isIntact(packet)) {
+            mCorrupt++;
+            return RESULT_CORRUPT;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mPassPackets++ == 0) {
+            mPassStart = now;
+        }
+        mLastArrival = now;
+        int sequence;
+        if (mRetransmitting) {
+            sequence = unwrap(readSequence(packet), mReplayPosition);
+            mReplayPosition = sequence;
+        } else {
+            sequence = unwrap(readSequence(packet), mHighest);
+        }
+        if (sequence < mNextDelivery || mPending.containsKey(sequence)) {
+            return RESULT_DUPLICATE;
+        }
+        if (sequence > mHighest) {
+            if (mRetransmitting && !mTailLost) {
+                // Past the end of the first pass, nothing new can show up here
+                return RESULT_DUPLICATE;
+            }
+            mMissing.set(mHighest + 1, sequence);
+            mHighest = sequence;
+        } else if (!mMissing.get(sequence)) {
+            return RESULT_DUPLICATE;
+        }
+        mMissing.clear(sequence);
+        mPending.put(sequence, mCrc ? strip(packet) : packet);
+        mPackets++;
+        deliver();
+        if (mRetransmitting && !mTailLost && mMissing.isEmpty() && mListener != null) {
+            mListener.onGapsFilled();
+        }
+        return RESULT_ACCEPTED;
+    }
+
+    /**
+     * Ends the current pass.
+     *
+     * @return {@code true} if the sync is complete or was given up, {@code false} if a
+     * retransmit pass was requested
+     */
+    public boolean end() {
+        if (mRetransmitting) {
+            // The replay ran to its end, whatever it had past the first pass is the tail
+            mTailLost = false;
+        } else {
+            mTailLost = isTailLost();
+        }
+        if (mMissing.isEmpty() && !mTailLost) {
+            mRetransmitting = false;
+            if (mListener != null) {
+                mListener.onComplete(mPackets, mCorrupt, mPasses);
+            }
+            return true;
+        }
+        List<int[]> ranges = getMissingRanges();
+        if (mPasses >= mMaxPasses) {
+            // Keep what comes before the first gap, the next sync starts over from there
+            mMissing.clear();
+            mPending.clear();
+            mRetransmitting = false;
+            mTailLost = false;
+            if (mListener != null) {
+                mListener.onIncomplete(ranges);
+            }
+            return true;
+        }
+        if (mListener != null) {
+            mListener.onRetransmitNeeded(ranges);
+        }
+        return false;
+    }
+
+    public List<int[]> getMissingRanges() {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int start = mMissing.nextSetBit(0);
+        while (start >= 0) {
+            int end = mMissing.nextClearBit(start);
+            ranges.add(new int[]{start, end - 1});
+            start = mMissing.nextSetBit(end);
+        }
+        if (mTailLost) {
+            ranges.add(new int[]{mHighest + 1, Integer.MAX_VALUE});
+        }
+        return ranges;
+    }
+
+    public int getCorruptCount() {
+        return mCorrupt;
+    }
+
+    /**
+     * @return whether the pause between the last packet and the end of the pass is too long
+     * for the packets to have ended there
+     */
+    private boolean isTailLost() {
+        if (mPassPackets < 2) {
+            // Nothing to compare with, a sync without packets is empty
+            return false;
+        }
+        long spacing = (mLastArrival - mPassStart) / (mPassPackets - 1);
+        long pause = SystemClock.elapsedRealtime() - mLastArrival;
+        return pause > Math.max(MIN_TAIL_GAP_MILLIS, spacing * TAIL_GAP_FACTOR);
+    }
+
+    private void deliver() {
+        while (!mPending.isEmpty() && mPending.firstKey() == mNextDelivery) {
+            mSink.onPacket(mPending.remove(mNextDelivery));
+            mNextDelivery++;
+        }
+    }
+
+    private boolean isIntact(byte[] packet) {
+        int length = mCrc ? packet.length - 2 : packet.length;
+        if (length < mSequenceOffset + mSequenceBytes) {
+            return false;
+        }
+        if (!mCrc) {
+            return true;
+        }
+        int crc = (packet[length] & 0xFF) | (packet[length + 1] & 0xFF) << 8;
+        return Crc16.compute(packet, 0, length) == crc;
+    }
+
+    private int readSequence(byte[] packet) {
+        int sequence = 0;
+        for (int i = mSequenceBytes - 1; i >= 0; i--) {
+            sequence = sequence << 8 | (packet[mSequenceOffset + i] & 0xFF);
+        }
+        return sequence;
+    }
+
+    private static byte[] strip(byte[] packet) {
+        byte[] payload = new byte[packet.length - 2];
+        System.arraycopy(packet, 0, payload, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * Maps a wrapping sequence number to the one nearest to {@code reference}, the unwrapped
+     * sequence of the packet before it or -1 at the start of a pass.
+     */
+    private int unwrap(int sequence, int reference) {
+        int origin = Math.max(reference, 0);
+        int base = origin - origin % mSequenceRange;
+        int candidate = base + sequence;
+        if (candidate - origin > mSequenceRange / 2 && candidate >= mSequenceRange) {
+            candidate -= mSequenceRange;
+        } else if (origin - candidate > mSequenceRange / 2) {
+            candidate += mSequenceRange;
+        }
+        return candidate;
+    }
+}
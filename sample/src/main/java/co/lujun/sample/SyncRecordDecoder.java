@@ -0,0 +1,24 @@
+package co.lujun.sample;
+
+/**
+ * Record format of one kind of sync. The payloads of a sync's packets are joined and cut into
+ * records of {@link #getRecordSize()} bytes.
+ */
+public interface SyncRecordDecoder {
+    /** Size of one record in the joined payload */
+    int getRecordSize();
+
+    /** Offset of the payload in {@code packet}, skipping its header */
+    int getPayloadOffset(byte[] packet);
+
+    /** Length of the payload in {@code packet} */
+    int getPayloadLength(byte[] packet);
+
+    /**
+     * Decodes the record at {@code offset}. May be called from several threads at once, so it
+     * must not keep state between calls.
+     *
+     * @return the record or {@code null} for padding
+     */
+    HistoryRecord decode(byte[] data, int offset);
+}
@@ -6,6 +6,9 @@ import android.util.Log;
 import com.diing.bluetooth.base.State;
 import diing.com.core.util.Logger;
 
+import java.util.Locale;
+import java.util.regex.Pattern;
+
 /**
  * Author: lujun(http://blog.lujun.co)
  * Date: 2016-1-26 10:12
@@ -58,4 +61,19 @@ public class Utils {
         Logger.e(tag, "Not a command");
         return "Not a command";
     }
+
+    private static final Pattern UUID_PATTERN = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    /**
+     * @return {@code uuid} in the lower case form {@code UUID#toString()} reports, so it can be
+     * compared with the uuid of a characteristic
+     * @throws IllegalArgumentException if {@code uuid} is not a full 128 bit uuid
+     */
+    public static String normalizeUuid(String uuid) {
+        if (uuid == null || !UUID_PATTERN.matcher(uuid).matches()) {
+            throw new IllegalArgumentException("Not a characteristic uuid: " + uuid);
+        }
+        return uuid.toLowerCase(Locale.US);
+    }
 }
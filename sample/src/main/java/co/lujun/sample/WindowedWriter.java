@@ -0,0 +1,317 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.diing.bluetooth.controller.BluetoothLEController;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Streams frames to one characteristic keeping up to {@code window} frames in flight instead
+ * of waiting for every frame to be acknowledged. A slot is released when the stack reports that
+ * very frame written ({@link #onFrameWritten}): callbacks are matched to the oldest frame in
+ * send order carrying the same value, so identical frames complete first in, first out, and
+ * callbacks for commands sharing the characteristic do not match any frame and are ignored. Optionally the device can further pace
+ * the transfer by granting application level credits ({@link #grantCredits}).
+ * Once the characteristic is known ({@link #setCharacteristics}) frames go out as write without
+ * response while the transfer runs.
+ * A frame that is not reported written in time is sent again on its own, after
+ * {@code maxRetries} attempts the transfer is aborted and
+ * {@link OnTransferListener#onTransferFailed} is called.
+ */
+public class WindowedWriter {
+
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_FRAME_TIMEOUT_MILLIS = 1000;
+
+    public interface OnTransferListener {
+        void onQueueDepthChanged(int pending);
+
+        void onFrameSent(long sequence);
+
+        void onTransferFailed(long sequence, byte[] frame);
+    }
+
+    private static class Frame {
+        final long sequence;
+        final byte[] data;
+        int attempts;
+        long deadline;
+
+        Frame(long sequence, byte[] data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    private final BluetoothLEController mController;
+    private final WriteScheduler mScheduler;
+    private final String mCharacteristicUuid;
+    private final int mWindow;
+    private final Handler mHandler;
+
+    private final Deque<Frame> mQueue = new ArrayDeque<Frame>();
+    private final Deque<Frame> mInFlight = new ArrayDeque<Frame>();
+
+    private OnTransferListener mListener;
+    private BluetoothGattCharacteristic mCharacteristic;
+    private boolean mWithoutResponse = true;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mFrameTimeoutMillis = DEFAULT_FRAME_TIMEOUT_MILLIS;
+    private boolean mCreditMode;
+    private int mCredits;
+    private long mNextSequence;
+    // Time the timeout check is posted for, 0 if none is
+    private long mCheckAt;
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeouts();
+        }
+    };
+
+    /**
+     * @throws IllegalArgumentException if {@code characteristicUuid} is not a full uuid
+     */
+    public WindowedWriter(BluetoothLEController controller, String characteristicUuid) {
+        this(controller, characteristicUuid, DEFAULT_WINDOW);
+    }
+
+    public WindowedWriter(BluetoothLEController controller, String characteristicUuid, int window) {
+        this(controller, null, characteristicUuid, window);
+    }
+
+    /**
+     * Sends frames through the {@link WriteScheduler.Lane#BULK bulk lane} of {@code scheduler}
+     * so they never hold up interactive writes. The bulk lane's window is set to {@code window}.
+     */
+    public WindowedWriter(WriteScheduler scheduler, String characteristicUuid, int window) {
+        this(null, scheduler, characteristicUuid, window);
+    }
+
+    private WindowedWriter(BluetoothLEController controller, WriteScheduler scheduler,
+                           String characteristicUuid, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window < 1");
+        }
+        mController = controller;
+        mScheduler = scheduler;
+        mCharacteristicUuid = Utils.normalizeUuid(characteristicUuid);
+        mWindow = window;
+        mHandler = BluetoothEventLoop.shared().getHandler();
+        if (scheduler != null) {
+            scheduler.setBulkWindow(window);
+        }
+    }
+
+    public synchronized void setOnTransferListener(OnTransferListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    public synchronized void setFrameTimeoutMillis(long frameTimeoutMillis) {
+        mFrameTimeoutMillis = frameTimeoutMillis;
+    }
+
+    /**
+     * Whether frames are sent as write without response, on by default.
+     */
+    public synchronized void setWriteWithoutResponse(boolean withoutResponse) {
+        mWithoutResponse = withoutResponse;
+        updateWriteType();
+    }
+
+    /**
+     * Feed {@code BluetoothLEListener#onDiscoveringCharacteristics} in here, the write type is set
+     * on the characteristic the controller writes through.
+     */
+    public synchronized void setCharacteristics(List<BluetoothGattCharacteristic> characteristics) {
+        mCharacteristic = null;
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (mCharacteristicUuid.equals(characteristic.getUuid().toString())) {
+                mCharacteristic = characteristic;
+            }
+        }
+        updateWriteType();
+    }
+
+    /**
+     * Switches to device paced mode, each frame then also consumes one credit granted by the
+     * device through {@link #grantCredits(int)}.
+     */
+    public synchronized void setCreditMode(boolean creditMode, int initialCredits) {
+        mCreditMode = creditMode;
+        mCredits = initialCredits;
+        pump();
+    }
+
+    public synchronized void grantCredits(int credits) {
+        mCredits += credits;
+        pump();
+    }
+
+    /**
+     * @return sequence number of the queued frame, reported back through the listener
+     */
+    public synchronized long enqueue(byte[] frame) {
+        Frame f = new Frame(mNextSequence++, frame);
+        mQueue.addLast(f);
+        notifyDepth();
+        pump();
+        return f.sequence;
+    }
+
+    public synchronized void enqueueAll(List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            mQueue.addLast(new Frame(mNextSequence++, frame));
+        }
+        notifyDepth();
+        pump();
+    }
+
+    public synchronized int getPendingCount() {
+        return mQueue.size() + mInFlight.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * Drops everything queued or in flight, e.g. when the link is lost.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mTimeoutCheck);
+        mCheckAt = 0;
+        mQueue.clear();
+        mInFlight.clear();
+        mCredits = 0;
+        updateWriteType();
+        notifyDepth();
+    }
+
+    /**
+     * Feed every {@code BluetoothLEListener#onWriteData} callback in here, with the value read
+     * in the callback. Writes on other characteristics or of other data are ignored.
+     */
+    public synchronized void onFrameWritten(String uuid, byte[] value) {
+        if (!mCharacteristicUuid.equalsIgnoreCase(uuid)) {
+            return;
+        }
+        // mInFlight is in send order, resent frames move to its end
+        Frame done = null;
+        Iterator<Frame> iterator = mInFlight.iterator();
+        while (iterator.hasNext()) {
+            Frame frame = iterator.next();
+            if (Arrays.equals(frame.data, value)) {
+                iterator.remove();
+                done = frame;
+                break;
+            }
+        }
+        if (done == null) {
+            return;
+        }
+        if (mListener != null) {
+            mListener.onFrameSent(done.sequence);
+        }
+        pump();
+        updateWriteType();
+        notifyDepth();
+    }
+
+    private void pump() {
+        updateWriteType();
+        while (mInFlight.size() < mWindow && !mQueue.isEmpty() && (!mCreditMode || mCredits > 0)) {
+            Frame frame = mQueue.pollFirst();
+            if (mCreditMode) {
+                mCredits--;
+            }
+            send(frame);
+            mInFlight.addLast(frame);
+        }
+    }
+
+    private void send(Frame frame) {
+        frame.attempts++;
+        frame.deadline = SystemClock.elapsedRealtime() + mFrameTimeoutMillis;
+        if (mScheduler != null) {
+            mScheduler.write(WriteScheduler.Lane.BULK, frame.data, mCharacteristicUuid);
+        } else {
+            mController.write(frame.data, mCharacteristicUuid);
+        }
+        scheduleCheck(frame.deadline);
+    }
+
+    private void scheduleCheck(long at) {
+        if (mCheckAt != 0 && mCheckAt <= at) {
+            return;
+        }
+        mCheckAt = at;
+        mHandler.removeCallbacks(mTimeoutCheck);
+        mHandler.postDelayed(mTimeoutCheck, Math.max(0, at - SystemClock.elapsedRealtime()));
+    }
+
+    private synchronized void checkTimeouts() {
+        mCheckAt = 0;
+        long now = SystemClock.elapsedRealtime();
+        long next = Long.MAX_VALUE;
+        List<Frame> resent = new ArrayList<Frame>();
+        for (Frame frame : mInFlight) {
+            if (frame.deadline > now) {
+                next = Math.min(next, frame.deadline);
+                continue;
+            }
+            if (frame.attempts > mMaxRetries) {
+                OnTransferListener listener = mListener;
+                cancel();
+                if (listener != null) {
+                    listener.onTransferFailed(frame.sequence, frame.data);
+                }
+                return;
+            }
+            // Only the expired frame, the others may well be confirmed in a moment
+            resent.add(frame);
+        }
+        for (Frame frame : resent) {
+            mInFlight.remove(frame);
+            send(frame);
+            mInFlight.addLast(frame);
+            next = Math.min(next, frame.deadline);
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleCheck(next);
+        }
+    }
+
+    /**
+     * Switches the characteristic to write without response while frames are outstanding and
+     * back once the transfer is done, so commands sharing it keep their acknowledged writes.
+     */
+    private void updateWriteType() {
+        if (mCharacteristic == null) {
+            return;
+        }
+        boolean transferring = mWithoutResponse && (!mQueue.isEmpty() || !mInFlight.isEmpty());
+        mCharacteristic.setWriteType(transferring ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    private void notifyDepth() {
+        if (mListener != null) {
+            mListener.onQueueDepthChanged(getPendingCount());
+        }
+    }
+}
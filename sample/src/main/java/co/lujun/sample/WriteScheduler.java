@@ -0,0 +1,297 @@
+package co.lujun.sample;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.diing.bluetooth.base.State;
+import com.diing.bluetooth.controller.BluetoothLEController;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Single path for outbound writes, split into priority {@link Lane lanes}. One write is in
+ * flight at a time, except for {@link Lane#BULK} which may keep up to
+ * {@link #setBulkWindow(int) its window} in flight while no other lane has one out. The next
+ * write is picked by weighted round robin so a tap is at most a few frames behind a running
+ * transfer, and a frame that waited longer than its lane's {@link Lane#maxWaitMillis} goes next
+ * whatever its lane, so bulk traffic never stalls. Characteristic uuids are checked and
+ * normalized when a write is queued. The stack completes the writes of a characteristic in the
+ * order they went out, so a write callback completes the oldest in-flight write to its
+ * characteristic; writes to the default characteristic are matched by
+ * {@link #setDefaultUuid(String) its uuid} once it is known. The controller is only called on the {@link BluetoothEventLoop}, in the order the writes were
+ * picked. Subscribe it to the {@link GattEventRouter} for write and connection state events.
+ */
+public class WriteScheduler extends GattEventAdapter {
+
+    private static final long WRITE_TIMEOUT_MILLIS = 1000;
+
+    public enum Lane {
+        /** User initiated: bind, find phone, settings */
+        INTERACTIVE(8, 500),
+        /** Background polling and sync control */
+        CONTROL(3, 2000),
+        /** Sync and firmware data */
+        BULK(1, 5000);
+
+        final int weight;
+        final long maxWaitMillis;
+
+        Lane(int weight, long maxWaitMillis) {
+            this.weight = weight;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+    }
+
+    private class Write implements Runnable {
+        final Lane lane;
+        final byte[] data;
+        /** {@code null} for the controller's default write characteristic */
+        final String uuid;
+        /** The characteristic the callback will report, {@code null} if not known */
+        final String key;
+        final long queuedAt;
+
+        Write(Lane lane, byte[] data, String uuid, String key, long queuedAt) {
+            this.lane = lane;
+            this.data = data;
+            this.uuid = uuid;
+            this.key = key;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            // The stack lost the callback, do not hold every lane up for it
+            complete(this);
+        }
+    }
+
+    private final BluetoothLEController mController;
+    private final Handler mHandler;
+    private final Lane[] mLanes = Lane.values();
+    private final Deque<Write>[] mQueues;
+    private final int[] mCredits;
+    private final long[] mWritten;
+    private final long[] mAged;
+    private final List<Write> mInFlight = new ArrayList<Write>();
+    private int mBulkWindow = 1;
+    private String mDefaultUuid;
+    private boolean mNextAged;
+
+    @SuppressWarnings("unchecked")
+    public WriteScheduler(BluetoothLEController controller) {
+        mController = controller;
+        mHandler = BluetoothEventLoop.shared().getHandler();
+        mQueues = new Deque[mLanes.length];
+        mCredits = new int[mLanes.length];
+        mWritten = new long[mLanes.length];
+        mAged = new long[mLanes.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            mQueues[i] = new ArrayDeque<Write>();
+        }
+        refill();
+    }
+
+    /**
+     * Lets the bulk lane keep up to {@code window} writes in flight, e.g. the window of a
+     * {@link WindowedWriter} sending without response.
+     */
+    public synchronized void setBulkWindow(int window) {
+        mBulkWindow = Math.max(1, window);
+        pump();
+    }
+
+    /**
+     * Sets the uuid of the characteristic the controller writes to by default, so write
+     * callbacks of {@link #write(Lane, byte[])} can be told from those of other characteristics.
+     *
+     * @throws IllegalArgumentException if {@code uuid} is not a characteristic uuid
+     */
+    public synchronized void setDefaultUuid(String uuid) {
+        mDefaultUuid = Utils.normalizeUuid(uuid);
+    }
+
+    /**
+     * Writes to the default write characteristic.
+     */
+    public void write(Lane lane, byte[] data) {
+        write(lane, data, null);
+    }
+
+    /**
+     * @param uuid the characteristic, {@code null} for the default one
+     * @throws IllegalArgumentException if {@code uuid} is not a characteristic uuid
+     */
+    public synchronized void write(Lane lane, byte[] data, String uuid) {
+        String normalized = uuid == null ? null : Utils.normalizeUuid(uuid);
+        mQueues[lane.ordinal()].addLast(new Write(lane, data, normalized,
+                normalized != null ? normalized : mDefaultUuid, SystemClock.elapsedRealtime()));
+        pump();
+    }
+
+    public synchronized int getPendingCount(Lane lane) {
+        return mQueues[lane.ordinal()].size();
+    }
+
+    /**
+     * @return frames written from {@code lane} so far
+     */
+    public synchronized long getWrittenCount(Lane lane) {
+        return mWritten[lane.ordinal()];
+    }
+
+    /**
+     * @return frames of {@code lane} that went out of turn because they waited too long
+     */
+    public synchronized long getAgedCount(Lane lane) {
+        return mAged[lane.ordinal()];
+    }
+
+    public synchronized void clear() {
+        for (Write write : mInFlight) {
+            mHandler.removeCallbacks(write);
+        }
+        mInFlight.clear();
+        for (Deque<Write> queue : mQueues) {
+            queue.clear();
+        }
+        refill();
+    }
+
+    @Override
+    public void onWriteData(BluetoothGattCharacteristic characteristic) {
+        onWritten(characteristic.getUuid().toString());
+    }
+
+    @Override
+    public void onBluetoothServiceStateChanged(int state) {
+        if (state == State.STATE_DISCONNECTED || state == State.STATE_NONE) {
+            clear();
+        }
+    }
+
+    /**
+     * @param uuid lowercase, as {@link java.util.UUID#toString()} gives it
+     */
+    private synchronized void onWritten(String uuid) {
+        Write unkeyed = null;
+        // In flight in send order, the first match is the oldest
+        for (Write write : mInFlight) {
+            if (uuid.equals(write.key)) {
+                complete(write);
+                return;
+            }
+            if (write.key == null && unkeyed == null) {
+                unkeyed = write;
+            }
+        }
+        if (unkeyed != null) {
+            complete(unkeyed);
+        }
+        // Otherwise a late callback of a write that already timed out, or one that did not go
+        // through here
+    }
+
+    private synchronized void complete(Write write) {
+        if (!mInFlight.remove(write)) {
+            return;
+        }
+        mHandler.removeCallbacks(write);
+        pump();
+    }
+
+    private void pump() {
+        while (true) {
+            int lane = next();
+            if (lane < 0 || !canSend(mLanes[lane])) {
+                return;
+            }
+            take(lane);
+            final Write write = mQueues[lane].pollFirst();
+            mInFlight.add(write);
+            mWritten[lane]++;
+            // Posted under the lock, so the controller sees the writes in the order picked
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (write.uuid == null) {
+                        mController.write(write.data);
+                    } else {
+                        mController.write(write.data, write.uuid);
+                    }
+                }
+            });
+            mHandler.postDelayed(write, WRITE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private boolean canSend(Lane lane) {
+        if (mInFlight.isEmpty()) {
+            return true;
+        }
+        if (lane != Lane.BULK || mInFlight.size() >= mBulkWindow) {
+            return false;
+        }
+        for (Write write : mInFlight) {
+            if (write.lane != Lane.BULK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the lane to write from next or -1 if all are empty
+     */
+    private int next() {
+        long now = SystemClock.elapsedRealtime();
+        int oldest = -1;
+        long oldestOverdue = 0;
+        for (int i = 0; i < mLanes.length; i++) {
+            Write head = mQueues[i].peekFirst();
+            if (head != null) {
+                long overdue = now - head.queuedAt - mLanes[i].maxWaitMillis;
+                if (overdue > oldestOverdue) {
+                    oldestOverdue = overdue;
+                    oldest = i;
+                }
+            }
+        }
+        if (oldest >= 0) {
+            mNextAged = true;
+            return oldest;
+        }
+        mNextAged = false;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < mLanes.length; i++) {
+                if (!mQueues[i].isEmpty() && mCredits[i] > 0) {
+                    return i;
+                }
+            }
+            // Every lane with work used up its share, start a new round
+            refill();
+        }
+        return -1;
+    }
+
+    /**
+     * Charges {@code lane} for the write {@link #next()} picked.
+     */
+    private void take(int lane) {
+        if (mNextAged) {
+            mAged[lane]++;
+        } else {
+            mCredits[lane]--;
+        }
+    }
+
+    private void refill() {
+        for (int i = 0; i < mLanes.length; i++) {
+            mCredits[i] = mLanes[i].weight;
+        }
+    }
+}
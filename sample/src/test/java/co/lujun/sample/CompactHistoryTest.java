@@ -0,0 +1,106 @@
+package co.lujun.sample;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CompactHistoryTest {
+
+    private static final int BLOCK_RECORDS = 4;
+
+    @Test
+    public void roundTripsRecordsAcrossBlocks() throws IOException {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        long time = 1500000000000L;
+        for (int i = 0; i < 3 * BLOCK_RECORDS + 1; i++) {
+            // Uneven intervals, falling values and a type stored without deltas
+            time += i % 3 == 0 ? 60000 : 59000;
+            records.add(new HistoryRecord(time, HistoryRecord.TYPE_SPORT, i, 100 - i * 30, i * 7, 0, -i));
+            records.add(new HistoryRecord(time - 120000, HistoryRecord.TYPE_SLEEP, 0, i % 4, 60));
+            records.add(new HistoryRecord(time, 40, 0xFFFF, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        }
+
+        CompactHistoryReader reader = new CompactHistoryReader(new ByteArrayInputStream(write(records)));
+        for (HistoryRecord expected : records) {
+            assertRecordEquals(expected, reader.next());
+        }
+        assertNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void roundTripsEmptyStream() throws IOException {
+        CompactHistoryReader reader = new CompactHistoryReader(
+                new ByteArrayInputStream(write(new ArrayList<HistoryRecord>())));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void corruptedBlockFailsBeforeAnyOfItsRecords() throws IOException {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        for (int i = 0; i < 2 * BLOCK_RECORDS; i++) {
+            records.add(new HistoryRecord(i * 60000L, HistoryRecord.TYPE_SPORT, 0, i, i * 2));
+        }
+        byte[] data = write(records);
+        // Last byte of the second block's payload, before its crc32 and the end marker
+        data[data.length - 6] ^= 0x01;
+
+        CompactHistoryReader reader = new CompactHistoryReader(new ByteArrayInputStream(data));
+        for (int i = 0; i < BLOCK_RECORDS; i++) {
+            assertRecordEquals(records.get(i), reader.next());
+        }
+        try {
+            reader.next();
+            fail("Corrupted block was decoded");
+        } catch (IOException expected) {
+            // checksum mismatch
+        }
+    }
+
+    @Test
+    public void truncatedStreamFails() throws IOException {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        for (int i = 0; i < BLOCK_RECORDS; i++) {
+            records.add(new HistoryRecord(i * 60000L, HistoryRecord.TYPE_SPORT, 0, i));
+        }
+        byte[] data = write(records);
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        CompactHistoryReader reader = new CompactHistoryReader(new ByteArrayInputStream(truncated));
+        try {
+            reader.next();
+            fail("Truncated block was decoded");
+        } catch (IOException expected) {
+            // end of stream inside the block
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherStreams() throws IOException {
+        new CompactHistoryReader(new ByteArrayInputStream(new byte[]{'J', 'S', 'O', 'N', 1}));
+    }
+
+    private static byte[] write(List<HistoryRecord> records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactHistoryWriter writer = new CompactHistoryWriter(out, BLOCK_RECORDS);
+        for (HistoryRecord record : records) {
+            writer.write(record);
+        }
+        writer.close();
+        assertEquals(records.size(), writer.getWritten());
+        return out.toByteArray();
+    }
+
+    private static void assertRecordEquals(HistoryRecord expected, HistoryRecord actual) {
+        assertEquals(expected.toString(), actual.toString());
+    }
+}
@@ -0,0 +1,82 @@
+package co.lujun.sample;
+
+import com.diing.bluetooth.interfaces.BluetoothLEListener;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class GattEventRouterTest {
+
+    private static final String OTHER_UUID = "00002a19-0000-1000-8000-00805f9b34fb";
+
+    private final GattEventRouter mRouter = new GattEventRouter();
+    private final BluetoothLEListener mCommand = new GattEventAdapter() {
+    };
+    private final BluetoothLEListener mSync = new GattEventAdapter() {
+    };
+    private final BluetoothLEListener mAll = new GattEventAdapter() {
+    };
+
+    @Test
+    public void routesChangesByTheUuidsGattReports() {
+        mRouter.subscribe(mCommand, GattEventRouter.EVENT_CHANGE, BleActivity.READ_CHARACTERISTIC_UUID);
+        mRouter.subscribe(mSync, GattEventRouter.EVENT_CHANGE, BleActivity.SYNC_READ_CHARACTERISTIC_ID);
+
+        assertRoutes(gattUuid(BleActivity.READ_CHARACTERISTIC_UUID), mCommand);
+        assertRoutes(gattUuid(BleActivity.SYNC_READ_CHARACTERISTIC_ID), mSync);
+        assertRoutes(OTHER_UUID);
+    }
+
+    @Test
+    public void deliversToUnfilteredSubscribersToo() {
+        mRouter.subscribe(mAll, GattEventRouter.EVENT_ALL);
+        mRouter.subscribe(mCommand, GattEventRouter.EVENT_CHANGE, BleActivity.READ_CHARACTERISTIC_UUID);
+
+        assertRoutes(gattUuid(BleActivity.READ_CHARACTERISTIC_UUID), mAll, mCommand);
+        assertRoutes(OTHER_UUID, mAll);
+        BluetoothLEListener[] writes = mRouter.route(GattEventRouter.EVENT_WRITE,
+                gattUuid(BleActivity.READ_CHARACTERISTIC_UUID));
+        assertEquals(1, writes.length);
+        assertSame(mAll, writes[0]);
+    }
+
+    @Test
+    public void matchesUppercaseSubscriptions() {
+        mRouter.subscribe(mCommand, GattEventRouter.EVENT_CHANGE,
+                BleActivity.READ_CHARACTERISTIC_UUID.toUpperCase());
+
+        assertRoutes(gattUuid(BleActivity.READ_CHARACTERISTIC_UUID), mCommand);
+    }
+
+    @Test
+    public void stopsRoutingAfterUnsubscribe() {
+        mRouter.subscribe(mCommand, GattEventRouter.EVENT_CHANGE, BleActivity.READ_CHARACTERISTIC_UUID);
+        mRouter.unsubscribe(mCommand);
+
+        assertRoutes(gattUuid(BleActivity.READ_CHARACTERISTIC_UUID));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheSdkCharacteristicIds() {
+        mRouter.subscribe(mCommand, GattEventRouter.EVENT_CHANGE, BleActivity.READ_CHARACTERISTIC_ID);
+    }
+
+    private void assertRoutes(String uuid, BluetoothLEListener... expected) {
+        BluetoothLEListener[] routed = mRouter.route(GattEventRouter.EVENT_CHANGE, uuid);
+        assertEquals(expected.length, routed.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertSame(expected[i], routed[i]);
+        }
+    }
+
+    /**
+     * @return {@code uuid} the way a characteristic callback reports it
+     */
+    private static String gattUuid(String uuid) {
+        return UUID.fromString(uuid).toString();
+    }
+}
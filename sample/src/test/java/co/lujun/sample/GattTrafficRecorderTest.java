@@ -0,0 +1,89 @@
+package co.lujun.sample;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GattTrafficRecorderTest {
+
+    @Test
+    public void replaysWhatWasRecorded() throws Exception {
+        File file = File.createTempFile("trace", ".gtr");
+        try {
+            GattTrafficRecorder recorder = new GattTrafficRecorder(file);
+            recorder.record(GattTrafficRecorder.TYPE_STATE, null, new byte[]{3});
+            recorder.record(GattTrafficRecorder.TYPE_WRITE, BleActivity.WRITE_CHARACTERISTIC_UUID,
+                    new byte[]{1, 2});
+            recorder.record(GattTrafficRecorder.TYPE_NOTIFY, BleActivity.READ_CHARACTERISTIC_UUID,
+                    new byte[]{3, 4, 5});
+            recorder.record(GattTrafficRecorder.TYPE_NOTIFY, BleActivity.READ_CHARACTERISTIC_UUID,
+                    null);
+            recorder.close();
+            // Late events are not recorded
+            recorder.record(GattTrafficRecorder.TYPE_READ, BleActivity.READ_CHARACTERISTIC_UUID,
+                    new byte[]{6});
+            assertTrue(recorder.awaitClosed(5000));
+
+            final List<String> events = new ArrayList<String>();
+            final List<byte[]> values = new ArrayList<byte[]>();
+            InputStream in = new FileInputStream(file);
+            long count;
+            try {
+                count = GattTrafficReplayer.replay(in, new GattTrafficReplayer.Sink() {
+                    @Override
+                    public void onWrite(String uuid, byte[] value) {
+                        events.add("write " + uuid);
+                        values.add(value);
+                    }
+
+                    @Override
+                    public void onNotification(String uuid, byte[] value) {
+                        events.add("notify " + uuid);
+                        values.add(value);
+                    }
+
+                    @Override
+                    public void onRead(String uuid, byte[] value) {
+                        events.add("read " + uuid);
+                        values.add(value);
+                    }
+
+                    @Override
+                    public void onStateChanged(int state) {
+                        events.add("state " + state);
+                        values.add(null);
+                    }
+                }, false);
+            } finally {
+                in.close();
+            }
+
+            assertEquals(4, count);
+            assertEquals("state 3", events.get(0));
+            assertEquals("write " + BleActivity.WRITE_CHARACTERISTIC_UUID, events.get(1));
+            assertArrayEquals(new byte[]{1, 2}, values.get(1));
+            assertEquals("notify " + BleActivity.READ_CHARACTERISTIC_UUID, events.get(2));
+            assertArrayEquals(new byte[]{3, 4, 5}, values.get(2));
+            assertArrayEquals(new byte[0], values.get(3));
+            assertEquals(0, recorder.getDropped());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        GattTrafficReplayer.replay(new ByteArrayInputStream("GTRX\1".getBytes()),
+                new GattTrafficReplayer.CommandControllerSink(), false);
+    }
+}
@@ -0,0 +1,152 @@
+package co.lujun.sample;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import diing.com.core.controller.CommandController;
+import diing.com.core.util.DIException;
+
+/**
+ * Plays back a trace written by {@link GattTrafficRecorder}, either with the recorded timing or
+ * as fast as possible. Lives with the tests and depends on nothing Android specific, so traces
+ * from the field can be run through the decoder on a plain JVM, with the test classpath:
+ * <pre>
+ * java co.lujun.sample.GattTrafficReplayer trace.gtr [--realtime]
+ * </pre>
+ */
+public class GattTrafficReplayer {
+
+    public interface Sink {
+        void onWrite(String uuid, byte[] value);
+
+        void onNotification(String uuid, byte[] value);
+
+        void onRead(String uuid, byte[] value);
+
+        void onStateChanged(int state);
+    }
+
+    /**
+     * Feeds notifications into {@link CommandController} the way the app does.
+     */
+    public static class CommandControllerSink implements Sink {
+        private long mErrors;
+
+        @Override
+        public void onWrite(String uuid, byte[] value) {
+        }
+
+        @Override
+        public void onNotification(String uuid, byte[] value) {
+            try {
+                CommandController.shared().getResult(value);
+            } catch (DIException e) {
+                mErrors++;
+            }
+        }
+
+        @Override
+        public void onRead(String uuid, byte[] value) {
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        public long getErrors() {
+            return mErrors;
+        }
+    }
+
+    /**
+     * @param realTime {@code true} to keep the recorded gaps between events
+     * @return number of events replayed
+     */
+    public static long replay(InputStream input, Sink sink, boolean realTime) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        byte[] magic = new byte[GattTrafficRecorder.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, GattTrafficRecorder.MAGIC)
+                || in.readUnsignedByte() != GattTrafficRecorder.VERSION) {
+            throw new IOException("Not a GATT trace");
+        }
+        Map<Integer, String> channels = new HashMap<Integer, String>();
+        long start = System.nanoTime();
+        long events = 0;
+        while (true) {
+            int type;
+            try {
+                type = in.readUnsignedByte();
+            } catch (EOFException e) {
+                break;
+            }
+            int channel = in.readUnsignedByte();
+            int length = in.readUnsignedShort();
+            long nanos = in.readLong();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (type == GattTrafficRecorder.TYPE_CHANNEL) {
+                channels.put(channel, new String(payload));
+                continue;
+            }
+            if (realTime) {
+                long wait = nanos - (System.nanoTime() - start);
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            String uuid = channels.get(channel);
+            switch (type) {
+                case GattTrafficRecorder.TYPE_WRITE:
+                    sink.onWrite(uuid, payload);
+                    break;
+                case GattTrafficRecorder.TYPE_NOTIFY:
+                    sink.onNotification(uuid, payload);
+                    break;
+                case GattTrafficRecorder.TYPE_READ:
+                    sink.onRead(uuid, payload);
+                    break;
+                case GattTrafficRecorder.TYPE_STATE:
+                    sink.onStateChanged(payload.length > 0 ? payload[0] : -1);
+                    break;
+                default:
+                    break;
+            }
+            events++;
+        }
+        return events;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: GattTrafficReplayer <trace> [--realtime]");
+            System.exit(1);
+        }
+        boolean realTime = args.length > 1 && "--realtime".equals(args[1]);
+        CommandControllerSink sink = new CommandControllerSink();
+        InputStream in = new FileInputStream(args[0]);
+        long start = System.nanoTime();
+        long events;
+        try {
+            events = replay(in, sink, realTime);
+        } finally {
+            in.close();
+        }
+        long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+        System.out.println(events + " events in " + micros + "us, "
+                + (events * 1000000 / micros) + " events/s, " + sink.getErrors() + " decode errors");
+    }
+}